@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses the descriptor table of a generated bundle, and decodes all of its entries in parallel, as every command
+ * that reads a bundle does.  The bundle is generated once per fork, in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleBenchmark {
+	private static final int HEADER_SIZE = 32;
+	
+	@Param({"2000"})
+	public int entries;
+	
+	@Param({"none:40,zlib:30,lz4:30"})
+	public String compression;
+	
+	private Path workDir;
+	private Object reader;
+	private Object decoder;
+	private ByteBuffer descriptors;
+	private long dataOffset;
+	private List<?> files;
+	private MethodHandle parseDescriptors;
+	private MethodHandle decodeAll;
+	
+	@Setup
+	public void setup() throws Throwable {
+		workDir = Files.createTempDirectory("bundle-jmh");
+		String bundle = workDir.resolve("synthetic.bundle").toString();
+		Object metrics = Handles.constructor("Metrics", 0).invoke();
+		Handles.method("BundleExplorer", "run", 3).invoke(Arrays.asList("generate", bundle),
+				Arrays.asList("--entries=" + entries, "--sizes=1-256", "--compression=" + compression), metrics);
+		
+		reader = Handles.constructor("BundleReader", 2).invoke(bundle, metrics);
+		decoder = Handles.constructor("ParallelDecoder", 1).invoke(metrics);
+		dataOffset = (long)Handles.method("BundleReader", "getDataOffset", 0).invoke(reader);
+		FileChannel channel = (FileChannel)Handles.method("BundleReader", "getChannel", 0).invoke(reader);
+		descriptors = channel.map(MapMode.READ_ONLY, HEADER_SIZE, dataOffset);
+		files = (List<?>)Handles.method("BundleReader", "getFiles", 0).invoke(reader);
+		parseDescriptors = Handles.method("BundleReader", "parseDescriptors", 2);
+		decodeAll = Handles.method("ParallelDecoder", "decodeAll", 3);
+	}
+	
+	@TearDown
+	public void tearDown() throws Throwable {
+		Handles.method("ParallelDecoder", "shutdown", 0).invoke(decoder);
+		((Closeable)reader).close();
+		try (DirectoryStream<Path> workFiles = Files.newDirectoryStream(workDir)) {
+			for (Path file : workFiles) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(workDir);
+	}
+	
+	@Benchmark
+	public List<?> parseDescriptors() throws Throwable {
+		return (List<?>)parseDescriptors.invoke(descriptors.duplicate().order(ByteOrder.LITTLE_ENDIAN), dataOffset);
+	}
+	
+	@Benchmark
+	public List<?> decodeAll() throws Throwable {
+		List<?> failures = (List<?>)decodeAll.invoke(decoder, reader, files, null);
+		if (! failures.isEmpty()) {
+			throw new IllegalStateException(failures.size() + " files failed to decode; first failure:  " + failures.get(0));
+		}
+		return failures;
+	}
+}
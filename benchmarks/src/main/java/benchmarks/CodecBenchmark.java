@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compresses and decompresses a single generated entry with each of the codecs that can write their format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"zlib", "lz4", "lz4hc"})
+	public String codecName;
+	
+	@Param({"16384", "1048576"})
+	public int size;
+	
+	private MethodHandle compress;
+	private MethodHandle decompress;
+	private Object codec;
+	private byte[] data;
+	private byte[] compressed;
+	private byte[] target;
+	
+	@Setup
+	public void setup() throws Throwable {
+		compress = Handles.method("CompressingCodec", "compress", 2);
+		decompress = Handles.method("Codec", "decompress", 3);
+		codec = Handles.method("Codecs", "getCompressor", 1).invoke(codecName);
+		data = (byte[])Handles.method("SyntheticBundle", "getContent", 2).invoke(new Random(70), size);
+		compressed = (byte[])compress.invoke(codec, data, size);
+		target = new byte[size];
+	}
+	
+	@Benchmark
+	public byte[] compress() throws Throwable {
+		return (byte[])compress.invoke(codec, data, size);
+	}
+	
+	@Benchmark
+	public int decompress() throws Throwable {
+		return (int)decompress.invoke(codec, ByteBuffer.wrap(compressed), target, size);
+	}
+}
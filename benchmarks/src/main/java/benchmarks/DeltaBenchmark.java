@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes and decodes the delta between a generated entry and a lightly edited copy of it (a few changed bytes and
+ * an insertion), as 'diff' and 'apply' do for every modified entry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaBenchmark {
+	@Param({"65536", "4194304"})
+	public int size;
+	
+	private MethodHandle encode;
+	private MethodHandle decode;
+	private byte[] original;
+	private byte[] modified;
+	private byte[] delta;
+	
+	@Setup
+	public void setup() throws Throwable {
+		encode = Handles.method("DeltaEncoder", "encode", 2);
+		decode = Handles.method("DeltaEncoder", "decode", 3);
+		MethodHandle getContent = Handles.method("SyntheticBundle", "getContent", 2);
+		original = (byte[])getContent.invoke(new Random(70), size);
+		byte[] insertion = (byte[])getContent.invoke(new Random(71), 1000);
+		
+		modified = new byte[size + insertion.length];
+		System.arraycopy(original, 0, modified, 0, size / 2);
+		System.arraycopy(insertion, 0, modified, size / 2, insertion.length);
+		System.arraycopy(original, size / 2, modified, size / 2 + insertion.length, size - size / 2);
+		for (int position = 100; position < modified.length; position += 16384) {
+			modified[position] ^= 0x20;
+		}
+		delta = (byte[])encode.invoke(ByteBuffer.wrap(original), ByteBuffer.wrap(modified));
+	}
+	
+	@Benchmark
+	public byte[] encode() throws Throwable {
+		return (byte[])encode.invoke(ByteBuffer.wrap(original), ByteBuffer.wrap(modified));
+	}
+	
+	@Benchmark
+	public byte[] decode() throws Throwable {
+		return (byte[])decode.invoke(ByteBuffer.wrap(original), delta, modified.length);
+	}
+}
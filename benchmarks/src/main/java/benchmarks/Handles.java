@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Method handles for BundleExplorer's internals.  The tool is a single source file in the default package, whose
+ * classes are all private and nested, so the benchmarks look its methods up by name once, in their setup, and call
+ * them through these handles.
+ */
+final class Handles {
+	private Handles() {
+	}
+	
+	/**
+	 * Returns the nested class with the given simple name, or BundleExplorer itself for "BundleExplorer".
+	 */
+	public static Class<?> type(String name) throws ClassNotFoundException {
+		return Class.forName("BundleExplorer".equals(name) ? name : "BundleExplorer$" + name);
+	}
+	
+	/**
+	 * Returns a handle for the method of the named class with the given name and number of parameters (for an
+	 * instance method, the receiver is the handle's first parameter).
+	 */
+	public static MethodHandle method(String type, String name, int numParameters) throws ReflectiveOperationException {
+		for (Class<?> current = type(type); current != null; current = current.getSuperclass()) {
+			for (Method method : current.getDeclaredMethods()) {
+				if (method.getName().equals(name) && method.getParameterTypes().length == numParameters) {
+					method.setAccessible(true);
+					return MethodHandles.lookup().unreflect(method);
+				}
+			}
+		}
+		throw new NoSuchMethodException(type + "." + name + "/" + numParameters);
+	}
+	
+	/**
+	 * Returns a handle for the constructor of the named class with the given number of parameters.
+	 */
+	public static MethodHandle constructor(String type, int numParameters) throws ReflectiveOperationException {
+		for (Constructor<?> constructor : type(type).getDeclaredConstructors()) {
+			if (constructor.getParameterTypes().length == numParameters) {
+				constructor.setAccessible(true);
+				return MethodHandles.lookup().unreflectConstructor(constructor);
+			}
+		}
+		throw new NoSuchMethodException(type + ".<init>/" + numParameters);
+	}
+}
@@ -1,15 +1,94 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Reads a Witcher 3 'bundle' file, (optionally) replaces content with modified versions, and then writes the data 
@@ -22,232 +101,357 @@ import java.util.List;
  * Changing the size of a bundle file appears to cause issues with entries in the game's 'metadata.store' file.  In 
  * some instances, this can be worked around by deleting the 'metadata.store' file.  However, in other instances (with 
  * DLC content, in particular), the game does not appear to automatically regenerate a missing 'metadata.store' files, 
- * and instead simply does not load the modified bundle.  
+ * and instead simply does not load the modified bundle.  The MetadataStore class takes care of the first case 
+ * when '--reset-metadata' is passed.
  * 
  * @author aroth
  */
 public class BundleExplorer {
 	private static final int HEADER_SIZE = 32;
+	private static final byte[] MAGIC = "POTATO70".getBytes(StandardCharsets.ISO_8859_1);
 	private static final int ALIGNMENT_TARGET = 4096;
 	private static final String FOOTER_DATA = "AlignmentUnused";		//XXX:  the bundle's final filesize should be an even multiple of 16; garbage data should be appended at the end if necessary to make this happen [appears to be unnecessary/optional, as far as the game cares]
 	
 	public static void main(String[] args) throws Exception {
-		if (args.length < 3) {
-			System.out.println("Usage:  java BundleExplorer <Input Bundle File> <Output File> <Mod Base Directory> [-r (optional, pass '-r' to automatically replace the input file with the output file upon completion)]");
-			return;
+		//separate the flags (anything starting with '-') from the positional arguments
+		List<String> params = new ArrayList<>();
+		List<String> flags = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("-")) {
+				flags.add(arg);
+			}
+			else {
+				params.add(arg);
+			}
 		}
-		
-		String input = args[0];
-		String output = args[1];
-		String modRoot = args[2];
-		boolean overwriteBundle = args.length > 3 && "-r".equals(args[3]);
-		
-		InputStream in = new FileInputStream(input);
-		
-		//read the header
-		IOUtils.readAndDiscard(in, 8); 	//"POTATO70"
-		int totalSize = IOUtils.readInt32LSBFirst(in);
-		int otherSize = IOUtils.readInt32LSBFirst(in);
-		int dataOffset = IOUtils.readInt32LSBFirst(in);		//XXX:  should be incremented by 32-bytes according to quickbms notes
-		byte[] otherHeaderData = IOUtils.readBytes(in, 12);
-		
-		System.out.println("Reading bundle '" + input + "', size=" + totalSize + ", dummySize=" + otherSize + ", dataOffset=" + dataOffset + ", dataOffset+32=" + (dataOffset + HEADER_SIZE) + ", otherHeaderData:  " + bytesToString(otherHeaderData) );
-		
-		//read the file descriptors
-		int readOffset = HEADER_SIZE;
-		List<BundleFile> bundleFiles = new ArrayList<>();
-		while (readOffset < dataOffset + HEADER_SIZE) {
-			String filename = IOUtils.readFixedLengthString(in);
-			readOffset += IOUtils.DEFAULT_STRING_LENGTH;
-			
-			byte[] hash = IOUtils.readBytes(in, 16);
-			readOffset += 16;
-			
-			IOUtils.readAndDiscard(in, 4);
-			readOffset += 4;
-			
-			int uncompressedSize = IOUtils.readInt32LSBFirst(in);
-			readOffset += 4;
-			
-			int compressedSize = IOUtils.readInt32LSBFirst(in);
-			readOffset += 4;
-			
-			int fileOffset = IOUtils.readInt32LSBFirst(in);
-			readOffset += 4;
-			
-			long modifyTime = IOUtils.readInt64LSBFirst(in);
-			readOffset += 8;
-			
-			IOUtils.readAndDiscard(in, 16);
-			readOffset += 16;
-			
-			int unknownBytes = IOUtils.readInt32LSBFirst(in);
-			readOffset += 4;
-			
-			int compressionAlgo = IOUtils.readInt32LSBFirst(in);
-			readOffset += 4;
-			
-			BundleFile bundleFile = new BundleFile(filename, hash, uncompressedSize, compressedSize, dataOffset, fileOffset, modifyTime, unknownBytes, compressionAlgo);
-			System.out.println("Read file descriptor; " + bundleFile);
-			bundleFiles.add(bundleFile);
+		boolean pause;
+		Metrics metrics = new Metrics();
+		try {
+			pause = run(params, flags, metrics);
+		}
+		finally {
+			metrics.report(getOption(flags, "--metrics"), flags.contains("--verbose"));
 		}
 		
-		int numLoaded = 0;
-		System.out.println("Loading " + bundleFiles.size() + " files, this may take awhile...");
-		
-		List<BundleFile> sortedFiles = new ArrayList<>(bundleFiles);
-		Collections.sort(sortedFiles, new BundleFileOffsetCompare());
-		
-		//read the file data
-		for (BundleFile file : sortedFiles) {
-			//seek to the start of the actual data
-			int seekBy = file.getOffset(readOffset) - readOffset;
-			
-			//System.out.println("Current read offset:  " + readOffset + ", seekTo=" + file.getOffset(readOffset) + ", seekBy=" + seekBy + ", dataSize=" + file.getCompressedSize() + ", file=" + file.getFilename());
-			
-			IOUtils.readAndDiscard(in, seekBy);			//XXX:  will encounter a bunch of 0's here; their job is to align the file entries on 4KB boundaries
-			readOffset += seekBy;
-			
-			//read the actual data
-			byte[] rawData = IOUtils.readBytes(in, file.getCompressedSize());
-			readOffset += rawData.length;
-			
-			if (file.getCompressionAlgo() == 0) {
-				//the data is stored uncompressed; we can use it directly
-				file.setData(rawData);
+		//wait a few seconds, in case someone runs us from a 'bat' file and doesn't add their own 'pause' at the end
+		if (pause) {
+			Thread.sleep(5000);
+		}
+	}
+	
+	/**
+	 * Runs the command given on the command line, recording what it does in 'metrics', and returns true if we should 
+	 * pause before exiting.
+	 */
+	private static boolean run(List<String> params, List<String> flags, Metrics metrics) throws Exception {
+		String badOption = checkOptions(flags);
+		if (badOption != null) {
+			System.out.println("ERROR:  " + badOption);
+			return false;
+		}
+		if (! params.isEmpty() && "batch".equals(params.get(0)) && params.size() >= 3) {
+			new BatchPatcher(params.get(1), params.subList(2, params.size()), flags, metrics).run();
+			return false;
+		}
+		if (! params.isEmpty() && "index".equals(params.get(0)) && params.size() >= 2) {
+			for (Path bundle : findBundles(Paths.get(params.get(1)))) {
+				BundleIndex index = BundleIndex.open(bundle.toString(), metrics);
+				System.out.println((index.wasRebuilt() ? "Indexed " : "Index is up to date; ") + index.size() + " files in '" + bundle + "'.");
 			}
-			else if (file.getCompressionAlgo() == 1) {
-				//should be able to read the data using a zip input stream
-				int numRead = 0;
-				//byte[] uncompressedData = new byte[file.getUncompressedSize()];
-				
-				//XXX:  neither Inflater nor ZipInputStream are able to decompress the data
-				//Inflater decompresser = new Inflater();
-			    //decompresser.setInput(rawData, 0, rawData.length);
-			    //numRead = decompresser.inflate(uncompressedData);
-			    //decompresser.end();
-				
-				if (numRead == file.getUncompressedSize()) {
-					System.out.println("Successfully decompressed:  " + file.getFilename());
-				//	file.setData(uncompressedData);
+			return false;
+		}
+		if (! params.isEmpty() && "locate".equals(params.get(0)) && params.size() >= 3) {
+			locate(params.get(1), params.subList(2, params.size()), metrics);
+			return false;
+		}
+		if (! params.isEmpty() && "extract".equals(params.get(0)) && params.size() >= 3) {
+			Extractor extractor = new Extractor(params.subList(3, params.size()), flags.contains("--regex"), metrics);
+			for (Path bundle : findBundles(Paths.get(params.get(1)))) {
+				extractor.extract(bundle.toString(), Paths.get(params.get(2)));
+			}
+			extractor.shutdown();
+			return false;
+		}
+		if (! params.isEmpty() && "verify".equals(params.get(0)) && params.size() >= 2) {
+			Metrics.Phase phase = metrics.start("verify");
+			Verifier verifier = new Verifier(Hashes.get(getOption(flags, "--hash")), metrics);
+			int numDamaged = 0;
+			List<Path> bundles = findBundles(Paths.get(params.get(1)));
+			for (Path bundle : bundles) {
+				List<String> problems = verifier.verify(bundle.toString());
+				for (String problem : problems) {
+					System.out.println("ERROR:  " + bundle + ":  " + problem);
 				}
-				else {
-					//System.out.println("WARN:  Failed to decompress data:  file=" + file.getFilename());
-					file.forceCompression(1);
-					file.setCompressionAlgo(0);
-					file.setData(rawData);
+				if (! problems.isEmpty()) {
+					numDamaged++;
 				}
 			}
+			verifier.shutdown();
+			phase.end();
+			System.out.println(numDamaged == 0 ? "All " + bundles.size() + " bundles are intact." : "ERROR:  " + numDamaged + " / " + bundles.size() + " bundles are damaged.");
+			return false;
+		}
+		if (! params.isEmpty() && "duplicates".equals(params.get(0)) && params.size() >= 2) {
+			PayloadIndex.reportDuplicates(findBundles(Paths.get(params.get(1))), metrics);
+			return false;
+		}
+		if (! params.isEmpty() && "serve".equals(params.get(0))) {
+			String port = getOption(flags, "--port");
+			if (port == null) {
+				new Server().serveStdin();
+			}
 			else {
-				//System.out.println("WARN:  Unsupported compression algorithm:  file=" + file.getFilename() + ", algo=" + file.getCompressionAlgo());
-				file.forceCompression(file.getCompressionAlgo());
-				file.setCompressionAlgo(0);
-				file.setData(rawData);
+				new Server().serveSocket(Integer.parseInt(port));
 			}
-			
-			//System.out.println("Loaded file " + file.getFilename() + ", dataLength=" + file.getData().length + ", uncompressed=" + file.getUncompressedSize() + ", compressed=" + file.getCompressedSize() 
-			//		+ ", algo=" + (file.forceCompressionAlgo == -1 ? file.getCompressionAlgo() : file.forceCompressionAlgo));
-			
-			numLoaded++;
-			if (numLoaded % 100 == 0) {
-				System.out.println("Loaded " + numLoaded + " / " + bundleFiles.size() + " files...");
+			return false;
+		}
+		if (! params.isEmpty() && "search".equals(params.get(0)) && params.size() >= 3) {
+			String maxMatches = getOption(flags, "--max-per-file");
+			ContentSearch search = new ContentSearch(params.subList(2, params.size()), flags.contains("--hex"), flags.contains("--utf16"), flags.contains("--ignore-case"), 
+					maxMatches == null ? 10 : Integer.parseInt(maxMatches), metrics);
+			long startTime = System.nanoTime();
+			Metrics.Phase phase = metrics.start("search");
+			long numMatches = 0;
+			List<Path> bundles = findBundles(Paths.get(params.get(1)));
+			for (Path bundle : bundles) {
+				numMatches += search.search(bundle.toString());
 			}
+			search.shutdown();
+			phase.end();
+			System.out.println("Found matches in " + numMatches + " files of " + bundles.size() + " bundles in " + ((System.nanoTime() - startTime) / 1000000) + "ms.");
+			return false;
 		}
-		
-		in.close();
-		System.out.println("Done loading files; checking for mods...");
-		
-		//now we can check for anything that should be overridden, and create a new bundle file if desired
-		for (BundleFile file : bundleFiles) {
-			File modFile = new File(modRoot + "/" + file.getFilename());
-			if (modFile.exists()) {
-				System.out.println("Overriding file " + file.getFilename() + " with content from '" + modFile.getAbsolutePath() + "'.");
-			
-				//replace the bundleFile content with the mod data
-				try {
-					in = new FileInputStream(modFile);
-					byte[] fileData = IOUtils.readBytes(in, (int)modFile.length());		//XXX:  2GB maximum (because ints are always signed in Java)
-					in.close();
-					
-					file.forceCompression(-1);
-					file.setCompressionAlgo(0);		//XXX:  when merging, disable compression on any merged asset
-					file.setData(fileData);
-				}
-				catch (Exception e) {
-					System.out.println("ERROR:  Failed to override file " + file.getFilename() + ", detailed error message follows;");
-					e.printStackTrace();
-				}
+		if (! params.isEmpty() && "generate".equals(params.get(0)) && params.size() >= 2) {
+			SyntheticBundle generator = new SyntheticBundle(flags);
+			generator.generate(params.get(1), metrics);
+			if (params.size() >= 3) {
+				generator.writeMods(params.get(2));
+			}
+			return false;
+		}
+		if (! params.isEmpty() && "benchmark".equals(params.get(0))) {
+			new Benchmark(flags, metrics).run(params.size() >= 3 ? params.get(1) : null, params.size() >= 3 ? params.get(2) : null);
+			return false;
+		}
+		if (! params.isEmpty() && "diff".equals(params.get(0)) && params.size() >= 4) {
+			Metrics.Phase phase = metrics.start("diff");
+			DeltaPackage.create(params.get(1), params.get(2), params.get(3), metrics);
+			phase.end();
+			return false;
+		}
+		if (! params.isEmpty() && "apply".equals(params.get(0)) && params.size() >= 3) {
+			if (getOption(flags, "--hash") != null) {
+				System.out.println("ERROR:  '--hash' can't be used with 'apply'; a delta package reproduces the modified bundle exactly, hashes included, so recompute them when building the modified bundle instead.");
+				return false;
 			}
+			Metrics.Phase phase = metrics.start("apply");
+			DeltaPackage.apply(params.get(1), params.get(2), params.size() >= 4 ? params.get(3) : null, flags.contains("--reset-metadata"), metrics);
+			phase.end();
+			return false;
 		}
 		
-		System.out.println("Finished loading mods; writing output...");
+		boolean inPlace = flags.contains("--in-place");
+		if (params.size() < (inPlace ? 2 : 3)) {
+			System.out.println("Usage:  java BundleExplorer <Input Bundle File> <Output File> <Mod Base Directory>... [-r (optional, pass '-r' to automatically replace the input file with the output file upon completion)]");
+			System.out.println("        java BundleExplorer --in-place <Bundle File> <Mod Base Directory>...   (patches the bundle directly, rewriting only the modified entries)");
+			System.out.println("        java BundleExplorer batch <Game Content Directory> <Mod Base Directory>... [--threads=<n>]   (patches, in place, every bundle under the content directory that contains a modded file)");
+			System.out.println("        (when more than one mod directory is given, they're merged in a single pass; where mods override the same file, the last one listed wins, and the conflict is reported)");
+			System.out.println("        java BundleExplorer index <Bundle File or Directory>   (builds or refreshes the '" + BundleIndex.EXTENSION + "' index stored next to each bundle)");
+			System.out.println("        java BundleExplorer locate <Bundle File or Directory> <File Name>...   (lists the bundles that contain each file, using the indexes)");
+			System.out.println("        java BundleExplorer extract <Bundle File or Directory> <Output Directory> [<Pattern>...] [--regex]   (writes out the files whose names match any of the glob patterns, or regexes with '--regex'; everything if no pattern is given)");
+			System.out.println("        java BundleExplorer diff <Original Bundle File> <Modified Bundle File> <Delta File>   (writes a delta package that turns the original bundle into the modified one)");
+			System.out.println("        java BundleExplorer apply <Bundle File> <Delta File> [<Output File>]   (applies a delta package to the bundle, in place unless an output file is given)");
+			System.out.println("        java BundleExplorer verify <Bundle File or Directory> [--hash=<scheme>]   (checks the structure of each bundle and decodes every file, reporting anything that's damaged)");
+			System.out.println("        java BundleExplorer duplicates <Bundle File or Directory>   (reports how much file data is stored more than once, within and across bundles)");
+			System.out.println("        java BundleExplorer serve [--port=<n>]   (serves list/extract/verify/patch requests as line-delimited JSON-RPC on stdin/stdout, or on a local port, keeping bundles open between requests)");
+			System.out.println("        java BundleExplorer search <Bundle File or Directory> <Pattern>... [--hex] [--utf16] [--ignore-case] [--max-per-file=<n>]   (lists the files whose content contains any of the strings, or hex byte strings with '--hex')");
+			System.out.println("        java BundleExplorer generate <Output File> [<Mod Directory>] [--entries=<n>] [--sizes=<min KB>-<max KB>] [--compression=<codec>:<weight>,...] [--modded=<n>] [--seed=<n>]   (writes a synthetic bundle, and optionally a mod directory overriding some of its files)");
+			System.out.println("        java BundleExplorer benchmark [<Bundle File> <Mod Directory>] [--warmup=<n>] [--iterations=<n>]   (times each stage of patching a bundle; takes the 'generate' options, and uses a synthetic bundle if none is given)");
+			System.out.println("Options:  --check   decode every file in the bundle (in parallel) and report any that fail before patching");
+			System.out.println("          --compress[=<spec>]   compress modified files; <spec> is a codec name (lz4 or zlib, default lz4), or a list like 'xml:zlib,dds:none,lz4' giving a codec per file extension (an entry without an extension sets the default)");
+			System.out.println("          --add   add modded files that don't exist in the bundle as new files (not available with --in-place)");
+			System.out.println("          --remove=<pattern>[,<pattern>...]   remove the files whose names match any of the glob patterns from the bundle (not available with --in-place)");
+			System.out.println("          --dedup   store identical file data only once in the output, with every file that has it pointing at the same copy");
+			System.out.println("          --shard-size=<MB>   split the output into several bundles of at most this size each ('output.0.bundle', 'output.1.bundle', ...), written concurrently (not available with --in-place or -r)");
+			System.out.println("          --window=<MB>   how much modded data may be held in memory while writing the output (default " + PatchPipeline.DEFAULT_WINDOW_SIZE / 1024 / 1024 + ")");
+			System.out.println("          --hash=<scheme>   recompute the hash of every modified file with the given scheme, in every mode except 'apply' (the game's own scheme is not known yet; 'md5' is available for testing)");
+			System.out.println("          --reset-metadata   move the 'metadata.store' next to a changed bundle aside (to 'metadata.store.bak'), so that the game rebuilds it (by default it's left alone, with a warning)");
+			System.out.println("          --full   rebuild the output from scratch, even if it could be updated incrementally");
+			System.out.println("          --verbose   report every file descriptor read, and every file overridden, added or removed");
+			System.out.println("          --metrics[=<file>]   report the time spent in each phase, bytes read and written, files decoded per codec and peak heap use; as JSON, or in Prometheus' text format if <file> ends with '.prom' (printed if no file is given)");
+			return false;
+		}
 		
-		//now we can write the file; to do so we first need to know how big the entire file will be (including any padding bytes needed to ensure proper alignment of data)
-		//XXX:  in theory the starting data-offset position should not change, because we're not (currently) allowing any files to be added or removed, just overwritten
-		int writePosition = HEADER_SIZE;
-		for (BundleFile file : bundleFiles) {
-			writePosition += file.getHeaderEntrySize();
+		String input = params.get(0);
+		String output = inPlace ? null : params.get(1);
+		List<String> modRoots = params.subList(inPlace ? 1 : 2, params.size());		//later mod directories take priority over earlier ones
+		boolean overwriteBundle = flags.contains("-r");
+		String compressionSpec = getOption(flags, "--compress");
+		boolean addFiles = flags.contains("--add");
+		String removeSpec = getOption(flags, "--remove");
+		String shardSize = getOption(flags, "--shard-size");
+		boolean resetMetadata = flags.contains("--reset-metadata");
+		boolean verbose = flags.contains("--verbose");		//per-file output (every descriptor read, every file overridden, and so on)
+		EntryHasher hasher = Hashes.get(getOption(flags, "--hash"));
+		if (inPlace && (addFiles || removeSpec != null)) {
+			System.out.println("ERROR:  Files can't be added or removed in place, since the file descriptors would no longer fit; write a new output file instead.");
+			return false;
+		}
+		if (shardSize != null && (inPlace || overwriteBundle)) {
+			System.out.println("ERROR:  '--shard-size' can't be combined with '--in-place' or '-r', since the output is split into several new bundles.");
+			return false;
 		}
 		
-		if (writePosition != dataOffset + HEADER_SIZE) {
-			System.out.println("WARN:  Data offset has changed!");
+		//if the output was built by a previous run, only the overrides that have changed since then need to be patched into it
+		if (! inPlace && ! overwriteBundle && ! flags.contains("--full") && ! addFiles && removeSpec == null && shardSize == null) {
+			Metrics.Phase incremental = metrics.start("incremental");
+			boolean patched = patchIncrementally(input, output, modRoots, flags, metrics);
+			incremental.end();
+			if (patched) {
+				return false;
+			}
 		}
-		dataOffset = writePosition - HEADER_SIZE;
 		
-		//now walk the files, align each one, and take note of the total number of bytes needed
-		for (BundleFile file : sortedFiles) {
-			writePosition = file.getOffset(writePosition);
-			writePosition += file.getCompressedSize();
+		if (inPlace && InPlacePatcher.recover(input, metrics)) {
+			System.out.println("WARN:  Found an incomplete in-place update of '" + input + "'; the bundle has been restored to its previous state.");
 		}
 		
-		//don't forget the footer bytes (if necessary; we need to end on an even multiple of 16 bytes) [this seems to be optional as far as the game is concerned; some bundles do this, others do not]
+		//map the bundle and read the header and file descriptors directly from the mapped data
+		Metrics.Phase phase = metrics.start("open");
+		BundleReader reader = new BundleReader(input, metrics);
+		long totalSize = reader.getTotalSize();
+		int otherSize = reader.getOtherSize();
+		long dataOffset = reader.getDataOffset();		//XXX:  should be incremented by 32-bytes according to quickbms notes
+		byte[] otherHeaderData = reader.getOtherHeaderData();
+		
+		System.out.println("Reading bundle '" + input + "', size=" + totalSize + ", dummySize=" + otherSize + ", dataOffset=" + dataOffset + ", dataOffset+32=" + (dataOffset + HEADER_SIZE) + ", otherHeaderData:  " + bytesToString(otherHeaderData) );
 		
-		int neededFooterBytes = 16;		//XXX:  this disables the extra footer bytes (game doesn't strictly require them, so why bother?)
-		//int neededFooterBytes = 16 - (writePosition % 16);
-		if (neededFooterBytes < 16) {
-			writePosition += neededFooterBytes;
+		List<BundleFile> bundleFiles = new ArrayList<>(reader.getFiles());
+		if (verbose) {
+			for (BundleFile bundleFile : bundleFiles) {
+				System.out.println("Read file descriptor; " + bundleFile);
+			}
 		}
 		
-		//now we can write the file
-		OutputStream out = new FileOutputStream(output);
+		phase.end();
 		
-		//write the file header
-		IOUtils.writeString("POTATO70", out);
-		IOUtils.writeInt32LSBFirst(writePosition, out);
-		IOUtils.writeInt32LSBFirst(otherSize, out);			//XXX:  does this need to be recomputed?  If so, how???		[seems to work without recomputing]
-		IOUtils.writeInt32LSBFirst(dataOffset, out);
-		out.write(otherHeaderData);							//XXX:  does this need to be recomputed?  If so, how???		[seems to work without recomputing]
+		//optionally make sure that every entry can be decoded before going any further
+		if (flags.contains("--check")) {
+			System.out.println("Checking that all " + bundleFiles.size() + " files can be decoded...");
+			phase = metrics.start("check");
+			ParallelDecoder decoder = new ParallelDecoder(metrics);
+			List<String> failures = decoder.decodeAll(reader, bundleFiles, null);
+			decoder.shutdown();
+			phase.end();
+			for (String failure : failures) {
+				System.out.println("WARN:  Failed to decode " + failure);
+			}
+			System.out.println("Decoded " + (bundleFiles.size() - failures.size()) + " / " + bundleFiles.size() + " files.");
+		}
 		
-		writePosition = HEADER_SIZE;
+		System.out.println("Done loading files; checking for mods...");
 		
-		//write the file header entries
-		for (BundleFile file : bundleFiles) {
-			writePosition += file.writeFileHeader(out);
+		//now we can check for anything that should be overridden, and create a new bundle file if desired
+		ModIndex modIndex = new ModIndex(modRoots);
+		if (inPlace) {
+			phase = metrics.start("load");
+			List<BundleFile> modifiedFiles = applyMods(bundleFiles, modIndex, verbose, hasher, metrics);
+			phase.end();
+			for (String unmatched : modIndex.getUnmatched()) {
+				System.out.println("WARN:  Modded file " + unmatched + " does not exist in this bundle; it was ignored.");
+			}
+			modIndex.reportConflicts(metrics);
+			
+			//compress the modified files, if asked to
+			if (compressionSpec != null && ! modifiedFiles.isEmpty()) {
+				CompressionStage compressor = new CompressionStage(compressionSpec);
+				System.out.println("Compressing " + modifiedFiles.size() + " modified files...");
+				phase = metrics.start("compress");
+				compressor.compressAll(modifiedFiles);
+				compressor.shutdown();
+				phase.end();
+			}
+			
+			System.out.println("Finished loading mods; patching " + modifiedFiles.size() + " files in place...");
+			phase = metrics.start("patch");
+			new InPlacePatcher(reader, metrics).patch(modifiedFiles);
+			reader.close();
+			MetadataStore.bundleChanged(input, resetMetadata, metrics);
+			phase.end();
+			
+			System.out.println("Bundle successfully patched in place!");
+			return true;
 		}
 		
-		//write the file data
-		for (BundleFile file : sortedFiles) {
-			writePosition += file.writeCompressedData(out, writePosition);
-		}
+		//when writing a new bundle, the modded files are only matched up front; the pipeline loads, compresses and writes them a few at a time
+		Map<BundleFile, File> overrides = matchMods(bundleFiles, modIndex);
 		
-		//write the final footer data, if needed
-		if (neededFooterBytes < 16) {
-			IOUtils.writeString(FOOTER_DATA.substring(0, neededFooterBytes), out);
+		//optionally drop files from the bundle, and add any modded files that don't exist in it yet
+		if (removeSpec != null) {
+			removeFiles(bundleFiles, overrides.keySet(), removeSpec, verbose);
+		}
+		if (addFiles) {
+			for (String name : modIndex.getUnmatched()) {
+				BundleFile file = BundleFile.newEntry(name);
+				File modFile = modIndex.get(name);
+				if (verbose) {
+					System.out.println("Adding file " + name + " with content from '" + modFile.getAbsolutePath() + "'.");
+				}
+				bundleFiles.add(file);
+				overrides.put(file, modFile);
+			}
 		}
+		for (String unmatched : modIndex.getUnmatched()) {
+			System.out.println("WARN:  Modded file " + unmatched + " does not exist in this bundle; it was ignored (pass '--add' to add it).");
+		}
+		modIndex.reportConflicts(metrics);
+		
+		System.out.println("Found " + overrides.size() + " modded files; writing output...");
 		
-		//done!
-		out.close();
+		//now we can write the file; entries that weren't overridden are copied directly from the input bundle, and a manifest of what went into it lets the next run update it incrementally
+		BuildManifest manifest = overwriteBundle ? null : new BuildManifest(input, compressionSpec, hasher);
+		CompressionStage compressor = compressionSpec == null ? null : new CompressionStage(compressionSpec);
+		String window = getOption(flags, "--window");
+		PatchPipeline pipeline = new PatchPipeline(reader, compressor, hasher, 
+				window == null ? PatchPipeline.DEFAULT_WINDOW_SIZE : Long.parseLong(window) * 1024 * 1024, flags.contains("--dedup"), verbose, metrics);
+		BuildManifest.delete(output);
+		phase = metrics.start("write");
+		if (shardSize != null) {
+			List<String> shardNames = new ShardWriter(pipeline, Long.parseLong(shardSize) * 1024 * 1024).write(output, bundleFiles, overrides);
+			if (compressor != null) {
+				compressor.shutdown();
+			}
+			reader.close();
+			for (String shardName : shardNames) {
+				MetadataStore.bundleChanged(shardName, resetMetadata, metrics);
+			}
+			phase.end();
+			
+			System.out.println("Bundle successfully written to " + shardNames.size() + " shards:  " + shardNames);
+			return true;
+		}
+		pipeline.write(output, bundleFiles, overrides, manifest);
+		if (compressor != null) {
+			compressor.shutdown();
+		}
+		reader.close();
+		if (manifest != null) {
+			manifest.save(output);
+		}
+		MetadataStore.bundleChanged(output, resetMetadata, metrics);
+		phase.end();
 		
 		System.out.println("Bundle successfully written to " + output + "!");
 		
 		//if we were asked to replace the original file, do so (but only if we're able to back up the original file first!)
 		if (overwriteBundle) {
 			System.out.println("Replacing original bundle file...");
-			boolean renamed = new File(input).renameTo(new File(input + ".bak"));
+			boolean renamed = ! new File(input + ".bak").exists() && new File(input).renameTo(new File(input + ".bak"));
 			if (renamed && ! new File(input).exists()) {
 				renamed = new File(output).renameTo(new File(input));
 				if (renamed) {
 					System.out.println("Modified bundle installed successfully!");
+					MetadataStore.bundleChanged(input, resetMetadata, metrics);
 				}
 				else {
 					System.out.println("WARN:  Failed to move '" + output + "' to '" + input + "'!"); 
@@ -260,8 +464,320 @@ public class BundleExplorer {
 			}
 		}
 		
-		//wait a few seconds, in case someone runs us from a 'bat' file and doesn't add their own 'pause' at the end
-		Thread.sleep(5000);
+		return true;
+	}
+	
+	/**
+	 * Brings an output bundle written by a previous run up to date by patching it in place, using the build manifest 
+	 * saved alongside it to work out which overrides have changed (or been added or removed) since it was written.  
+	 * Returns false, without touching the output, if the output has to be rebuilt from scratch instead.
+	 */
+	private static boolean patchIncrementally(String input, String output, List<String> modRoots, List<String> flags, Metrics metrics) throws Exception {
+		String compressionSpec = getOption(flags, "--compress");
+		EntryHasher hasher = Hashes.get(getOption(flags, "--hash"));
+		boolean verbose = flags.contains("--verbose");
+		if (! new File(output).exists()) {
+			return false;
+		}
+		if (InPlacePatcher.recover(output, metrics)) {
+			System.out.println("WARN:  Found an incomplete update of '" + output + "'; it has been restored to its previous state.");
+		}
+		
+		BuildManifest previous = BuildManifest.load(output);
+		if (previous == null || ! previous.matches(input, output, compressionSpec, hasher)) {
+			return false;
+		}
+		
+		//the bundles are closed once the output has been patched, before the manifest is saved
+		BuildManifest manifest;
+		int numChanged;
+		int numRestored;
+		try (BundleReader inputReader = new BundleReader(input, metrics); BundleReader outputReader = new BundleReader(output, metrics)) {
+			List<BundleFile> inputFiles = inputReader.getFiles();
+			List<BundleFile> outputFiles = outputReader.getFiles();
+			if (inputFiles.size() != outputFiles.size()) {
+				return false;
+			}
+			
+			System.out.println("Updating '" + output + "' from the changes to " + modRoots + " since it was built...");
+			manifest = new BuildManifest(input, compressionSpec, hasher);
+			ModIndex modIndex = new ModIndex(modRoots);
+			List<BundleFile> changedFiles = new ArrayList<>();
+			List<BundleFile> restoredFiles = new ArrayList<>();
+			for (int index = 0; index < outputFiles.size(); index++) {
+				BundleFile file = outputFiles.get(index);
+				if (! file.getFilename().equals(inputFiles.get(index).getFilename())) {
+					return false;		//XXX:  the output doesn't line up with the input; it must have come from somewhere else
+				}
+				
+				File modFile = modIndex.get(file.getFilename());
+				BuildManifest.Fingerprint last = previous.get(index);
+				if (modFile == null) {
+					if (last != null) {
+						//the override was removed; put the original data back
+						if (verbose) {
+							System.out.println("Restoring original file " + file.getFilename() + ".");
+						}
+						BundleFile original = inputFiles.get(index);
+						ByteBuffer source = inputReader.getRawData(original);
+						byte[] data = new byte[source.remaining()];
+						source.get(data);
+						file.setStoredData(data, original.getUncompressedSize(), original.getCompressionAlgo());
+						file.setHash(original.getHash());		//in case it was recomputed with '--hash'
+						restoredFiles.add(file);
+					}
+					continue;
+				}
+				
+				if (last != null && last.isUnchanged(modFile)) {
+					manifest.put(index, last);
+					continue;
+				}
+				byte[] data = IOUtils.readFile(modFile, metrics);
+				BuildManifest.Fingerprint fingerprint = BuildManifest.fingerprint(modFile, data);
+				manifest.put(index, fingerprint);
+				if (last != null && last.getHash() == fingerprint.getHash()) {
+					continue;		//touched, but the content is the same
+				}
+				
+				if (verbose) {
+					System.out.println("Overriding file " + file.getFilename() + " with content from '" + modFile.getAbsolutePath() + "'.");
+				}
+				file.setData(data);
+				if (hasher != null) {
+					file.setHash(hasher.hash(data, data.length));
+				}
+				changedFiles.add(file);
+			}
+			for (String unmatched : modIndex.getUnmatched()) {
+				System.out.println("WARN:  Modded file " + unmatched + " does not exist in this bundle; it was ignored.");
+			}
+			modIndex.reportConflicts(metrics);
+			
+			if (compressionSpec != null && ! changedFiles.isEmpty()) {
+				CompressionStage compressor = new CompressionStage(compressionSpec);
+				System.out.println("Compressing " + changedFiles.size() + " modified files...");
+				compressor.compressAll(changedFiles);
+				compressor.shutdown();
+			}
+			
+			List<BundleFile> modifiedFiles = new ArrayList<>(changedFiles);
+			modifiedFiles.addAll(restoredFiles);
+			new InPlacePatcher(outputReader, metrics).patch(modifiedFiles);
+			numChanged = changedFiles.size();
+			numRestored = restoredFiles.size();
+		}
+		manifest.save(output);
+		MetadataStore.bundleChanged(output, flags.contains("--reset-metadata"), metrics);
+		
+		System.out.println("Bundle successfully updated; " + numChanged + " files changed, " + numRestored + " files restored, " + 
+				(manifest.size() - numChanged) + " overrides unchanged.");
+		return true;
+	}
+	
+	/**
+	 * Returns the value of a '--name=value' style flag, "" if the flag was given without a value, or null if it wasn't given.
+	 */
+	private static String getOption(List<String> flags, String name) {
+		for (String flag : flags) {
+			if (flag.equals(name)) {
+				return "";
+			}
+			if (flag.startsWith(name + "=")) {
+				return flag.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks the value of every numeric option that was given, and returns an error message (showing how the option is 
+	 * used) for the first one that's out of range or isn't a whole number, or null if they're all fine.
+	 */
+	private static String checkOptions(List<String> flags) {
+		String[] usages = {"--port=<n>", "--threads=<n>", "--window=<MB>", "--shard-size=<MB>", "--max-per-file=<n>", "--entries=<n>", "--modded=<n>", "--seed=<n>", "--warmup=<n>", "--iterations=<n>"};
+		long[][] ranges = {{1, 65535}, {1, 1024}, {1, 1024 * 1024}, {1, 4095}, {1, 1000000}, {1, 1000000}, {1, 1000000}, {0, Long.MAX_VALUE}, {0, 1000}, {1, 1000}};
+		for (int index = 0; index < usages.length; index++) {
+			String value = getOption(flags, usages[index].substring(0, usages[index].indexOf('=')));
+			if (value != null && ! isNumberInRange(value, ranges[index][0], ranges[index][1])) {
+				return "'" + usages[index] + "' needs a whole number from " + ranges[index][0] + " to " + ranges[index][1] + "; got '" + value + "'.";
+			}
+		}
+		
+		String sizes = getOption(flags, "--sizes");
+		if (sizes != null) {
+			String[] range = sizes.split("-", -1);
+			if (range.length != 2 || ! isNumberInRange(range[0], 1, SyntheticBundle.MAX_SIZE_KB) || ! isNumberInRange(range[1], 1, SyntheticBundle.MAX_SIZE_KB) 
+					|| Long.parseLong(range[0]) > Long.parseLong(range[1])) {
+				return "'--sizes=<min KB>-<max KB>' needs two whole numbers from 1 to " + SyntheticBundle.MAX_SIZE_KB + ", the first no larger than the second; got '" + sizes + "'.";
+			}
+		}
+		
+		String compression = getOption(flags, "--compression");
+		if (compression != null) {
+			long totalWeight = 0;
+			for (String entry : compression.split(",", -1)) {
+				int separator = entry.indexOf(':');
+				String codecName = separator < 0 ? entry : entry.substring(0, separator);
+				String weight = separator < 0 ? "1" : entry.substring(separator + 1);
+				if ((Codecs.getCompressor(codecName) == null && ! "none".equalsIgnoreCase(codecName)) || ! isNumberInRange(weight, 0, 1000000)) {
+					totalWeight = -1;
+					break;
+				}
+				totalWeight += Long.parseLong(weight);
+			}
+			if (totalWeight <= 0) {
+				return "'--compression=<codec>:<weight>,...' needs a list of codecs (none, zlib, lz4 or lz4hc) with whole-number weights from 0 to 1000000, not all 0; got '" + compression + "'.";
+			}
+		}
+		return null;
+	}
+	
+	private static boolean isNumberInRange(String value, long min, long max) {
+		return value.matches("[0-9]{1,18}") && Long.parseLong(value) >= min && Long.parseLong(value) <= max;
+	}
+	
+	/**
+	 * Loads the mod file of every entry that has one, recomputing its hash with 'hasher' (if there is one), and returns 
+	 * the entries that were overridden.
+	 */
+	private static List<BundleFile> applyMods(List<BundleFile> bundleFiles, ModIndex modIndex, boolean report, EntryHasher hasher, Metrics metrics) {
+		List<BundleFile> modifiedFiles = new ArrayList<>();
+		for (BundleFile file : bundleFiles) {
+			File modFile = modIndex.get(file.getFilename());
+			if (modFile != null && overrideFile(file, modFile, report, metrics)) {
+				if (hasher != null) {
+					file.setHash(hasher.hash(file.getData(), file.getData().length));
+				}
+				modifiedFiles.add(file);
+			}
+		}
+		
+		return modifiedFiles;
+	}
+	
+	/**
+	 * Matches the bundle's files against the mod directory, without loading anything, and returns the mod file that 
+	 * overrides each matching file.
+	 */
+	private static Map<BundleFile, File> matchMods(List<BundleFile> bundleFiles, ModIndex modIndex) {
+		Map<BundleFile, File> overrides = new IdentityHashMap<>();
+		for (BundleFile file : bundleFiles) {
+			File modFile = modIndex.get(file.getFilename());
+			if (modFile != null) {
+				overrides.put(file, modFile);
+			}
+		}
+		return overrides;
+	}
+	
+	/**
+	 * Removes every file whose name matches one of the comma-separated glob patterns in 'spec' from the bundle.
+	 */
+	private static void removeFiles(List<BundleFile> bundleFiles, Collection<BundleFile> modifiedFiles, String spec, boolean verbose) {
+		List<Pattern> patterns = new ArrayList<>();
+		for (String glob : spec.split(",")) {
+			if (! glob.trim().isEmpty()) {
+				patterns.add(EntryFilter.globToPattern(ModIndex.normalize(glob.trim())));
+			}
+		}
+		
+		int numRemoved = 0;
+		for (Iterator<BundleFile> files = bundleFiles.iterator(); files.hasNext(); ) {
+			BundleFile file = files.next();
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(ModIndex.normalize(file.getFilename())).matches()) {
+					if (verbose) {
+						System.out.println("Removing file " + file.getFilename() + ".");
+					}
+					files.remove();
+					modifiedFiles.remove(file);
+					numRemoved++;
+					break;
+				}
+			}
+		}
+		if (numRemoved == 0) {
+			System.out.println("WARN:  No files matched '--remove=" + spec + "'; nothing was removed.");
+		}
+		else {
+			System.out.println("Removed " + numRemoved + " files matching '" + spec + "'.");
+		}
+	}
+	
+	/**
+	 * Replaces the content of 'file' with the content of 'modFile' (reporting it if 'report' is set), and returns true 
+	 * if successful.
+	 */
+	private static boolean overrideFile(BundleFile file, File modFile, boolean report, Metrics metrics) {
+		if (report) {
+			System.out.println("Overriding file " + file.getFilename() + " with content from '" + modFile.getAbsolutePath() + "'.");
+		}
+		
+		//replace the bundleFile content with the mod data
+		try {
+			file.setData(IOUtils.readFile(modFile, metrics));		//XXX:  the mod data is stored uncompressed; with '--compress', the CompressionStage compresses it before it's written
+			return true;
+		}
+		catch (Exception e) {
+			System.out.println("ERROR:  Failed to override file " + file.getFilename() + ", detailed error message follows;");
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Reports which of the bundles under 'root' contain each of the named files.  Only the bundles' indexes are read.
+	 */
+	private static void locate(String root, List<String> filenames, Metrics metrics) throws IOException {
+		long start = System.nanoTime();
+		List<Path> bundles = findBundles(Paths.get(root));
+		int[] matches = new int[filenames.size()];
+		for (Path bundle : bundles) {
+			BundleIndex index = BundleIndex.open(bundle.toString(), metrics);
+			for (int i = 0; i < filenames.size(); i++) {
+				for (int entry = index.find(filenames.get(i)); entry >= 0; entry = index.next(entry)) {
+					System.out.println(bundle + ":  " + index.getName(entry) + ", offset=" + index.getOffset(entry) + ", size=" + index.getUncompressedSize(entry) + 
+							", compressedSize=" + index.getCompressedSize(entry) + ", compressionAlgo=" + Codecs.getName(index.getCompressionAlgo(entry)));
+					matches[i]++;
+				}
+			}
+		}
+		for (int i = 0; i < filenames.size(); i++) {
+			if (matches[i] == 0) {
+				System.out.println("WARN:  " + filenames.get(i) + " does not exist in any bundle.");
+			}
+		}
+		System.out.println("Searched " + bundles.size() + " bundles in " + (System.nanoTime() - start) / 1000 + "us.");
+	}
+	
+	/**
+	 * Returns every '.bundle' file under 'root' (in sorted order), or just 'root' itself if it is a file.
+	 */
+	private static List<Path> findBundles(Path root) throws IOException {
+		final List<Path> bundles = new ArrayList<>();
+		if (Files.isRegularFile(root)) {
+			bundles.add(root);
+			return bundles;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				if (file.getFileName().toString().toLowerCase().endsWith(".bundle")) {
+					bundles.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(bundles);
+		return bundles;
+	}
+	
+	/**
+	 * Rounds a position up to the next ALIGNMENT_TARGET boundary (where the data of each entry has to start).
+	 */
+	private static long alignUp(long position) {
+		return (position + ALIGNMENT_TARGET - 1) / ALIGNMENT_TARGET * ALIGNMENT_TARGET;
 	}
 	
 	private static String bytesToString(byte[] bytes) {
@@ -280,24 +796,24 @@ public class BundleExplorer {
 	}
 	
 	private static class BundleFile {
+		private static final int DESCRIPTOR_SIZE = IOUtils.DEFAULT_STRING_LENGTH + 64;
+		
 		//metadata
 		private String filename;
 		private byte[] hash;			//XXX:  probably md5 checksum?			[no, not MD5; or at least, doesn't match MD5 check against the stored file data]
-		private int uncompressedSize;
-		private int compressedSize;
-		private int offset;				//absolute offset to the first byte of file data, taken from the start of the input file (i.e. including the header bytes); must be aligned on a 4KB boundary
+		private long uncompressedSize;		//sizes and offsets are unsigned 32-bit values in the file; they're held as longs so they can't silently go negative
+		private long compressedSize;
+		private long offset;				//absolute offset to the first byte of file data, taken from the start of the input file (i.e. including the header bytes); must be aligned on a 4KB boundary
 		private long modifyTime;		//unsure of format used for this; does not appear to be unix or java timestamp
 		private int otherBytes;			//unknown purpose
 		private int compressionAlgo;	//compression used for this entry
 		
 		//file data
-		private byte[] data;
-		private byte[] compressedData;
+		private final long sourceOffset;	//absolute offset of the original payload within the input bundle (the 'offset' field may be changed when the output is laid out)
+		private final long sourceSize;		//size of the original payload
+		private byte[] data;			//replacement payload, only set when the entry has been overridden
 		
-		//internal bookkeeping
-		private int forceCompressionAlgo;
-		
-		public BundleFile(String name, byte[] hash, int uncompressed, int compressed, int dataBlockOffset, int offset, long modify, int otherBytes, int algo) {
+		public BundleFile(String name, byte[] hash, long uncompressed, long compressed, long dataBlockOffset, long offset, long modify, int otherBytes, int algo) {
 			this.filename = name;
 			this.hash = hash;
 			this.uncompressedSize = uncompressed;
@@ -306,9 +822,17 @@ public class BundleExplorer {
 			this.modifyTime = modify;
 			this.otherBytes = otherBytes;
 			this.compressionAlgo = algo;
-			this.forceCompressionAlgo = -1;
+			this.sourceOffset = offset;
+			this.sourceSize = compressed;
 		}
 
+		/**
+		 * Creates the descriptor for a file that is being added to the bundle; its content is supplied with 'setData()'.
+		 */
+		public static BundleFile newEntry(String name) {
+			return new BundleFile(name, new byte[16], 0, 0, 0, -1, 0, 0, 0);
+		}
+		
 		@Override
 		public String toString() {
 			//int relativePosition = (offset - HEADER_SIZE) - (this.getDataBlockOffset() + HEADER_SIZE);
@@ -329,11 +853,6 @@ public class BundleExplorer {
 					4;									//compression algo
 					
 		}
-		
-		public void forceCompression(int forcedAlgo) {
-			//XXX:  when used, we will set the forced compression flag into the outbound data, but simply copy the data field instead of attempting any compression
-			this.forceCompressionAlgo = forcedAlgo;
-		}
 
 		public int getCompressionAlgo() {
 			return compressionAlgo;
@@ -342,7 +861,7 @@ public class BundleExplorer {
 		public byte[] getData() {
 			return data;
 		}
-
+		
 		public String getFilename() {
 			return filename;
 		}
@@ -351,30 +870,20 @@ public class BundleExplorer {
 			return hash;
 		}
 
-		public int getUncompressedSize() {
+		public long getUncompressedSize() {
 			return uncompressedSize;
 		}
 
-		public int getCompressedSize() {
+		public long getCompressedSize() {
 			return compressedSize;
 		}
 
-		public int getOffset(int minPos) {
-			if (this.offset >= minPos) {
-				return this.offset;
-			}
-			
-			//something has changed in the underlying file, need to find the next valid offset based upon the data-block offset
-			int firstValidPos = (minPos / ALIGNMENT_TARGET) * ALIGNMENT_TARGET + ALIGNMENT_TARGET;
-			while (firstValidPos < minPos) {
-				firstValidPos += ALIGNMENT_TARGET;
-			}
-			
-			//int relativePosition = (offset - HEADER_SIZE) - (this.getDataBlockOffset() + HEADER_SIZE);
-			System.out.println("Computed new offset for file:  " + this.getFilename() + ", oldOffset=" + this.offset + ", newOffset=" + firstValidPos + ", aligned=" + (offset % ALIGNMENT_TARGET == 0 /*&& relativePosition % (ALIGNMENT_TARGET / 2) == 0*/));
-			
-			this.offset = firstValidPos;
-			return this.offset;
+		public long getOffset() {
+			return offset;
+		}
+
+		public void setOffset(long offset) {
+			this.offset = offset;
 		}
 
 		public long getModifyTime() {
@@ -384,217 +893,5499 @@ public class BundleExplorer {
 		public int getOtherBytes() {
 			return otherBytes;
 		}
-
-		public byte[] getCompressedData() {
-			return compressedData;
+		
+		public long getSourceOffset() {
+			return sourceOffset;
 		}
 		
-		public void setCompressionAlgo(int compressionAlgo) {
-			this.compressionAlgo = compressionAlgo;
-			if (compressionAlgo == 0) {
-				this.compressedData = null;
-				if (this.data != null) {
-					this.compressedSize = this.data.length;
-				}
-			}
+		public long getSourceSize() {
+			return sourceSize;
+		}
+		
+		/**
+		 * Returns true if this file was added to the bundle, rather than read from the input.
+		 */
+		public boolean isAdded() {
+			return sourceOffset < 0;
 		}
 		
 		public void setData(byte[] data) throws NoSuchAlgorithmException {
-			if (this.data == null) {
-				//initial set; don't need to update anything
-				this.data = data;
-				
-				//XXX:  wrong compression tool (incompatible with game); unnecessary besides
-				/*if (this.getCompressionAlgo() == 1) {
-					byte[] temp = new byte[data.length];
-					Deflater compresser = new Deflater();
-				    compresser.setInput(data);
-				    compresser.finish();
-				    int compressedDataLength = compresser.deflate(temp);
-				    compresser.end();
-				    
-				    if (compressedDataLength != this.getCompressedSize()) {
-				    	System.out.println("WARN:  Compressed size mismatch for file " + this.getFilename() + ", expectedSize=" + this.getCompressedSize() + ", actualSize=" + compressedDataLength);
-				    }
-				    
-				    this.compressedSize = compressedDataLength;
-				    this.compressedData = new byte[compressedDataLength];
-				    System.arraycopy(temp, 0, this.compressedData, 0, this.compressedSize);
-				}*/
-				return;
-			}
-			
-			//the data has been changed from its original/default value; we need to update the compressedData 'compressedData', 'uncompressedSize', 'compressedSize', and 'hash'
-			this.compressionAlgo = 0;		//XXX:  if the data is modified, the only compression algo we support is '0' (i.e. no compression)
+			//the data has been changed from its original/default value; we need to update the 'compressionAlgo', 'uncompressedSize', 'compressedSize', and 'hash'
+			this.compressionAlgo = 0;		//XXX:  modified data starts out uncompressed; the CompressionStage may compress it afterwards
 			this.data = data;
-			this.compressedData = data;
 			this.uncompressedSize = data.length;
 			this.compressedSize = data.length;
 			
-			if (this.forceCompressionAlgo == -1) {
-				//XXX:  the game doesn't actually seem to care if the hash values are correct; so don't even bother updating them [and even if it did care, this isn't the hash algorithm that it uses]
-				//MessageDigest md = MessageDigest.getInstance("MD5");
-				//byte[] newHash = md.digest(this.data);
-				//
-				//if (! bytesToString(newHash).equals(bytesToString(this.hash))) {
-				//	System.out.println("File modified:  " + this.getFilename() + ", oldHash=" + bytesToString(this.getHash()) + ", newHash=" + bytesToString(newHash));
-				//}
-				//this.hash = newHash;
-			}
-		}
-		
-		public int writeFileHeader(OutputStream out) throws IOException {
-			IOUtils.writeFixedLengthString(this.getFilename(), out);
-			out.write(this.getHash());
-			IOUtils.writeInt32LSBFirst(0, out);
-			IOUtils.writeInt32LSBFirst(this.getUncompressedSize(), out);
-			IOUtils.writeInt32LSBFirst(this.getCompressedSize(), out);
-			IOUtils.writeInt32LSBFirst(this.offset, out);
-			IOUtils.writeInt64LSBFirst(this.getModifyTime(), out);
-			out.write(new byte[16]); 
-			IOUtils.writeInt32LSBFirst(this.getOtherBytes(), out);
-			IOUtils.writeInt32LSBFirst(this.forceCompressionAlgo != -1 ? this.forceCompressionAlgo : this.getCompressionAlgo(), out);
-			
-			return this.getHeaderEntrySize();
-		}
-		
-		public int writeCompressedData(OutputStream out, int writePosition) throws IOException {
-			int numWritten = 0;
-			int paddingLength = this.getOffset(writePosition) - writePosition;
-			if (paddingLength > 0) {
-				int preliminaryPaddingLength = 16;		//use of 'prelimanary padding' data appears to be optional as far as the game cares, so don't bother with it [this line disables it]
-				//int preliminaryPaddingLength = 16 - (writePosition % 16);
-				if (preliminaryPaddingLength < 16) {
-					IOUtils.writeString(FOOTER_DATA.substring(0, preliminaryPaddingLength), out);
-					paddingLength -= preliminaryPaddingLength;
-					numWritten += preliminaryPaddingLength;
-				}
-				if (paddingLength > 0) {
-					out.write(new byte[paddingLength]);		
-					numWritten += paddingLength;
-				}
-			}
-			if (this.getCompressionAlgo() != 1 || this.getCompressedData() == null) {
-				out.write(this.getData());
-				numWritten += this.getData().length;
-			}
-			else {
-				out.write(this.getCompressedData());
-				numWritten += this.getCompressedData().length;
-			}
-			
-			return numWritten;
+			//XXX:  the game doesn't actually seem to care if the hash values are correct; so don't even bother updating them [and even if it did care, this isn't the hash algorithm that it uses]
+			//MessageDigest md = MessageDigest.getInstance("MD5");
+			//byte[] newHash = md.digest(this.data);
+			//
+			//if (! bytesToString(newHash).equals(bytesToString(this.hash))) {
+			//	System.out.println("File modified:  " + this.getFilename() + ", oldHash=" + bytesToString(this.getHash()) + ", newHash=" + bytesToString(newHash));
+			//}
+			//this.hash = newHash;
 		}
-	}
-	
-	private static class IOUtils {
-		static int allBytesRead = 0;
-		
-		private static final int UNSIGNED_BYTE = 0xFF;
-		private static final int DEFAULT_STRING_LENGTH = 0x100;
 		
-		public static void readAndDiscard(InputStream in, int numBytes) throws IOException {
-			int numRead = 0;
-			while (numRead < numBytes && in.read() != -1) {
-				numRead++;
-			}
-			
-			allBytesRead += numRead;
+		/**
+		 * Replaces the data with a payload that is already in its stored form (for instance, the original payload of an 
+		 * entry whose override has been removed).
+		 */
+		public void setStoredData(byte[] storedData, long uncompressedSize, int algo) {
+			this.compressionAlgo = algo;
+			this.data = storedData;
+			this.uncompressedSize = uncompressedSize;
+			this.compressedSize = storedData.length;
 		}
 		
-		public static byte[] readBytes(InputStream in, int numBytes) throws IOException {
-			int numRead = 0;
-			byte[] result = new byte[numBytes];
-			Arrays.fill(result, (byte)0);
-			
-			while (numRead < numBytes) {
-				int addedBytes = in.read(result, numRead, result.length - numRead);
-				if (addedBytes < 1) {
-					System.out.println("ERROR:  Failed to read bytes; lookingFor=" + numBytes + ", totalFound=" + numRead + ", allBytesRead=" + allBytesRead);
-					break;
-				}
-				
-				numRead += addedBytes;
-			}
-			
-			allBytesRead += numRead;
-			
-			return result;
+		public void setHash(byte[] hash) {
+			this.hash = hash;
 		}
 		
-		public static int readInt32LSBFirst(InputStream in) throws IOException {
-			byte[] components = readBytes(in, 4);
-			return (UNSIGNED_BYTE & components[0]) | ((UNSIGNED_BYTE & components[1]) << 8) | ((UNSIGNED_BYTE & components[2]) << 16) | ((UNSIGNED_BYTE & components[3]) << 24);
+		/**
+		 * Replaces the descriptor fields that aren't derived from the data.
+		 */
+		public void setMetadata(byte[] hash, long modifyTime, int otherBytes) {
+			this.hash = hash;
+			this.modifyTime = modifyTime;
+			this.otherBytes = otherBytes;
 		}
 		
-		public static long readInt64LSBFirst(InputStream in) throws IOException {
-			byte[] components = readBytes(in, 8);
-			return (UNSIGNED_BYTE & components[0]) | ((UNSIGNED_BYTE & components[1]) << 8) | ((UNSIGNED_BYTE & components[2]) << 16) | ((UNSIGNED_BYTE & components[3]) << 24)
-					| ((long)(UNSIGNED_BYTE & components[4]) << 32) | ((long)(UNSIGNED_BYTE & components[5]) << 40) | ((long)(UNSIGNED_BYTE & components[6]) << 48) | ((long)(UNSIGNED_BYTE & components[7]) << 56);
+		/**
+		 * Releases the (overridden) data once it has been written, keeping the descriptor as it is.
+		 */
+		public void discardData() {
+			this.data = null;
 		}
 		
-		public static String readFixedLengthString(InputStream in) throws IOException {
-			return readFixedLengthString(in, DEFAULT_STRING_LENGTH);
+		/**
+		 * Replaces the (previously overridden) data with a compressed version of itself.
+		 */
+		public void setCompressedData(byte[] compressedData, int algo) {
+			this.compressionAlgo = algo;
+			this.data = compressedData;
+			this.compressedSize = compressedData.length;
 		}
 		
-		public static String readFixedLengthString(InputStream in, int stringLength) throws IOException {
-			byte[] ascii = readBytes(in, stringLength);
-			StringBuffer buffer = new StringBuffer();
-			for (byte next : ascii) {
-				if (next == 0) {
-					break;
-				}
-				buffer.append((char)next);
-			}
+		public int writeFileHeader(ByteBuffer out) throws IOException {
+			IOUtils.putFixedLengthString(out, this.getFilename(), IOUtils.DEFAULT_STRING_LENGTH);
+			out.put(this.getHash());
+			out.putInt(0);
+			IOUtils.putUInt32(out, this.getUncompressedSize(), "uncompressed size of " + this.getFilename());
+			IOUtils.putUInt32(out, this.getCompressedSize(), "compressed size of " + this.getFilename());
+			IOUtils.putUInt32(out, this.offset, "data offset of " + this.getFilename());
+			out.putLong(this.getModifyTime());
+			IOUtils.putZeros(out, 16);
+			out.putInt(this.getOtherBytes());
+			out.putInt(this.getCompressionAlgo());
 			
-			return buffer.toString();
+			return this.getHeaderEntrySize();
 		}
+	}
+	
+	/**
+	 * Memory-maps a bundle file and parses its header and file descriptors directly from the mapped data.  Entry 
+	 * payloads are exposed as read-only slices of the mapping, so reading a bundle no longer requires holding its 
+	 * contents on the heap.
+	 */
+	private static class BundleReader implements Closeable {
+		private static final long MAP_SEGMENT_SIZE = 1L << 30;		//a single MappedByteBuffer can't exceed 2GB, so large bundles are mapped in 1GB segments
 		
-		public static void writeInt32LSBFirst(int number, OutputStream out) throws IOException {
-			out.write(number & UNSIGNED_BYTE);
-			out.write((number >> 8)  & UNSIGNED_BYTE);
-			out.write((number >> 16) & UNSIGNED_BYTE);
-			out.write((number >> 24) & UNSIGNED_BYTE);
-		}
+		private final String path;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long fileSize;
+		private final MappedByteBuffer[] segments;
 		
-		public static void writeInt64LSBFirst(long number, OutputStream out) throws IOException {
-			out.write((int)(number & UNSIGNED_BYTE));
-			out.write((int)((number >> 8)  & UNSIGNED_BYTE));
-			out.write((int)((number >> 16) & UNSIGNED_BYTE));
-			out.write((int)((number >> 24) & UNSIGNED_BYTE));
-			out.write((int)((number >> 32) & UNSIGNED_BYTE));
-			out.write((int)((number >> 40)  & UNSIGNED_BYTE));
-			out.write((int)((number >> 48) & UNSIGNED_BYTE));
-			out.write((int)((number >> 56) & UNSIGNED_BYTE));
-		}
+		//header data
+		private long totalSize;
+		private int otherSize;
+		private long dataOffset;
+		private byte[] otherHeaderData;
 		
-		public static void writeString(String text, OutputStream out) throws IOException {
-			out.write(text.getBytes());
-		}
+		private List<BundleFile> files;
 		
-		public static void writeFixedLengthString(String text, OutputStream out) throws IOException {
-			writeFixedLengthString(text, out, DEFAULT_STRING_LENGTH);
+		/**
+		 * Opens a bundle and reads its header and file descriptors; the bytes read are counted in 'metrics'.
+		 */
+		public BundleReader(String path, Metrics metrics) throws IOException {
+			this.path = path;
+			this.file = new RandomAccessFile(path, "r");
+			this.channel = file.getChannel();
+			this.fileSize = channel.size();
+			this.segments = new MappedByteBuffer[(int)((fileSize + MAP_SEGMENT_SIZE - 1) / MAP_SEGMENT_SIZE)];
+			
+			try {
+				this.readHeader(metrics);
+			}
+			catch (IOException | RuntimeException e) {
+				this.close();
+				throw e;
+			}
 		}
 		
-		public static void writeFixedLengthString(String text, OutputStream out, int stringLength) throws IOException {
-			byte[] data = text.getBytes();
-			byte[] buffer = new byte[stringLength];
+		private void readHeader(Metrics metrics) throws IOException {
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException("Not a bundle file (too small):  " + path);
+			}
 			
-			if (data.length >= buffer.length) {
-				System.out.println("WARN:  Payload data exceeds maximum size of a fixed-length string, it will be truncated; text=" + text);
+			//read the header
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			String magic = IOUtils.readFixedLengthString(header, MAGIC.length);
+			if (! "POTATO70".equals(magic)) {
+				throw new IOException("Not a bundle file (unexpected magic '" + magic + "'):  " + path);
 			}
+			totalSize = IOUtils.getUInt32(header);
+			otherSize = header.getInt();
+			dataOffset = IOUtils.getUInt32(header);
+			otherHeaderData = new byte[12];
+			header.get(otherHeaderData);
 			
-			int numToCopy = data.length < buffer.length ? data.length : buffer.length - 1;
-			System.arraycopy(data, 0, buffer, 0, numToCopy);
+			if (HEADER_SIZE + dataOffset > fileSize || dataOffset > Integer.MAX_VALUE) {
+				throw new IOException("Descriptor table extends past the end of the bundle; dataOffset=" + dataOffset + ", fileSize=" + fileSize + ", bundle=" + path);
+			}
 			
-			out.write(buffer);			
+			//read the file descriptors
+			files = parseDescriptors(channel.map(MapMode.READ_ONLY, HEADER_SIZE, dataOffset).order(ByteOrder.LITTLE_ENDIAN), dataOffset);
+			metrics.addRead(HEADER_SIZE + dataOffset);
 		}
+		
+		/**
+		 * Parses a descriptor table (starting at the current position of 'descriptors', which must be little-endian).
+		 */
+		public static List<BundleFile> parseDescriptors(ByteBuffer descriptors, long dataOffset) {
+			List<BundleFile> files = new ArrayList<>(descriptors.remaining() / BundleFile.DESCRIPTOR_SIZE);
+			char[] nameBuffer = new char[IOUtils.DEFAULT_STRING_LENGTH];
+			while (descriptors.remaining() >= BundleFile.DESCRIPTOR_SIZE) {
+				String filename = IOUtils.readFixedLengthString(descriptors, IOUtils.DEFAULT_STRING_LENGTH, nameBuffer);
+				
+				byte[] hash = new byte[16];
+				descriptors.get(hash);
+				
+				descriptors.getInt();		//always 0
+				long uncompressedSize = IOUtils.getUInt32(descriptors);
+				long compressedSize = IOUtils.getUInt32(descriptors);
+				long fileOffset = IOUtils.getUInt32(descriptors);
+				long modifyTime = descriptors.getLong();
+				descriptors.position(descriptors.position() + 16);		//always 0
+				int unknownBytes = descriptors.getInt();
+				int compressionAlgo = descriptors.getInt();
+				
+				files.add(new BundleFile(filename, hash, uncompressedSize, compressedSize, dataOffset, fileOffset, modifyTime, unknownBytes, compressionAlgo));
+			}
+			return files;
+		}
+		
+		/**
+		 * Returns the stored (possibly compressed) payload of the given entry, as a read-only slice of the mapped input.
+		 */
+		public ByteBuffer getRawData(BundleFile bundleFile) throws IOException {
+			long start = bundleFile.getOffset();
+			long length = bundleFile.getCompressedSize();
+			if (start + length > fileSize) {
+				throw new IOException("File data lies outside of the bundle; file=" + bundleFile.getFilename() + ", offset=" + start + ", size=" + length + ", bundleSize=" + fileSize);
+			}
+			IOUtils.toArraySize(length, "stored data of " + bundleFile.getFilename());
+			
+			int segmentIndex = (int)(start / MAP_SEGMENT_SIZE);
+			long segmentStart = segmentIndex * MAP_SEGMENT_SIZE;
+			if (start + length > segmentStart + MAP_SEGMENT_SIZE) {
+				//entry straddles a segment boundary; give it a mapping of its own
+				return channel.map(MapMode.READ_ONLY, start, length);
+			}
+			
+			ByteBuffer slice = this.getSegment(segmentIndex).duplicate();
+			slice.position((int)(start - segmentStart));
+			slice.limit((int)(start - segmentStart + length));
+			return slice.slice();
+		}
+		
+		private synchronized MappedByteBuffer getSegment(int index) throws IOException {
+			if (segments[index] == null) {
+				long segmentStart = index * MAP_SEGMENT_SIZE;
+				segments[index] = channel.map(MapMode.READ_ONLY, segmentStart, Math.min(MAP_SEGMENT_SIZE, fileSize - segmentStart));
+			}
+			return segments[index];
+		}
+		
+		public String getPath() {
+			return path;
+		}
+		
+		public FileChannel getChannel() {
+			return channel;
+		}
+
+		public long getTotalSize() {
+			return totalSize;
+		}
+
+		public int getOtherSize() {
+			return otherSize;
+		}
+
+		public long getDataOffset() {
+			return dataOffset;
+		}
+
+		public byte[] getOtherHeaderData() {
+			return otherHeaderData;
+		}
+
+		public List<BundleFile> getFiles() {
+			return files;
+		}
+
+		/**
+		 * Closes the bundle, and drops the mapped segments (a mapping is only released once it's been garbage collected).
+		 */
+		@Override
+		public void close() throws IOException {
+			Arrays.fill(segments, null);
+			file.close();
+		}
+	}
+	
+	/**
+	 * Patches a bundle file in place.  Modified entries that still fit in the space between their offset and the start 
+	 * of the next entry are overwritten where they are, and anything that no longer fits is appended to the end of the 
+	 * file.  Only the affected descriptors (and, if the file grows, the header) are rewritten.
+	 * 
+	 * Before anything in the bundle is touched, the original contents of every region that is about to be overwritten 
+	 * (along with the original file length) are saved to a journal file next to the bundle.  The journal is removed 
+	 * once the update has been flushed to disk, so if one is found when starting up it means that a previous update was 
+	 * interrupted, and the bundle is rolled back using the saved data.
+	 */
+	private static class InPlacePatcher {
+		private static final String JOURNAL_SUFFIX = ".journal";
+		private static final long JOURNAL_MAGIC = 0x4258_4A4F_5552_4E31L;		//"BXJOURN1"
+		
+		private final BundleReader reader;
+		private final Metrics metrics;
+		
+		public InPlacePatcher(BundleReader reader, Metrics metrics) {
+			this.reader = reader;
+			this.metrics = metrics;
+		}
+		
+		public void patch(List<BundleFile> modifiedFiles) throws IOException {
+			if (modifiedFiles.isEmpty()) {
+				return;
+			}
+			
+			List<BundleFile> allFiles = reader.getFiles();
+			long fileLength = reader.getChannel().size();
+			
+			Map<BundleFile, Integer> descriptorIndexes = new IdentityHashMap<>();
+			for (BundleFile file : allFiles) {
+				descriptorIndexes.put(file, descriptorIndexes.size());
+			}
+			
+			//each entry may grow into the slack between the end of its data and the start of the next entry's data
+			List<BundleFile> sortedFiles = new ArrayList<>(allFiles);
+			Collections.sort(sortedFiles, new BundleFileOffsetCompare());
+			
+			Map<BundleFile, Long> slotEnds = new IdentityHashMap<>();
+			long dataEnd = HEADER_SIZE + reader.getDataOffset();
+			for (int index = 0; index < sortedFiles.size(); index++) {
+				BundleFile file = sortedFiles.get(index);
+				long slotEnd = Long.MAX_VALUE;		//the final entry is free to extend the file
+				if (index > 0 && sortedFiles.get(index - 1).getSourceOffset() == file.getSourceOffset()) {
+					slotEnd = file.getSourceOffset();		//shared with another entry; never overwrite
+				}
+				else if (index + 1 < sortedFiles.size()) {
+					slotEnd = sortedFiles.get(index + 1).getSourceOffset();
+				}
+				slotEnds.put(file, slotEnd);
+				dataEnd = Math.max(dataEnd, file.getSourceOffset() + file.getSourceSize());
+			}
+			
+			//plan the update; anything that doesn't fit where it is goes to the end of the file, after any entry that grows in place past the old end
+			List<BundleFile> inPlaceFiles = new ArrayList<>();
+			List<BundleFile> relocatedFiles = new ArrayList<>();
+			List<long[]> regions = new ArrayList<>();		//{position, length} of every existing byte range that will be overwritten
+			for (BundleFile file : modifiedFiles) {
+				long oldOffset = file.getSourceOffset();
+				long oldSize = file.getSourceSize();
+				long newSize = file.getCompressedSize();
+				if (oldOffset + newSize <= slotEnds.get(file)) {
+					file.setOffset(oldOffset);
+					regions.add(new long[] {oldOffset, Math.min(fileLength, oldOffset + Math.max(oldSize, newSize)) - oldOffset});
+					dataEnd = Math.max(dataEnd, oldOffset + newSize);
+					inPlaceFiles.add(file);
+				}
+				else {
+					relocatedFiles.add(file);
+				}
+				
+				regions.add(new long[] {HEADER_SIZE + (long)descriptorIndexes.get(file) * BundleFile.DESCRIPTOR_SIZE, BundleFile.DESCRIPTOR_SIZE});
+			}
+			regions.add(new long[] {0, HEADER_SIZE});
+			
+			long appendPosition = alignUp(Math.max(fileLength, dataEnd));
+			for (BundleFile file : relocatedFiles) {
+				file.setOffset(appendPosition);
+				appendPosition = alignUp(appendPosition + file.getCompressedSize());
+			}
+			
+			//never touch the bundle if the plan would leave any two entries overlapping
+			List<String> problems = new ArrayList<>();
+			Verifier.checkOverlaps(allFiles, problems);
+			if (! problems.isEmpty()) {
+				throw new IOException("The in-place update of '" + reader.getPath() + "' was not applied, since it would have damaged the bundle:  " + problems);
+			}
+			
+			File journal = new File(reader.getPath() + JOURNAL_SUFFIX);
+			try (RandomAccessFile bundle = new RandomAccessFile(reader.getPath(), "rw")) {
+				FileChannel channel = bundle.getChannel();
+				writeJournal(journal, channel, fileLength, regions);
+				
+				//write the file data; entries that fit are overwritten where they are, and then the relocated ones are appended in order, with their alignment padding
+				long writePosition = fileLength;
+				for (BundleFile file : inPlaceFiles) {
+					ByteBuffer data = ByteBuffer.wrap(file.getData());
+					long oldSize = file.getSourceSize();
+					IOUtils.writeFully(channel, data, file.getOffset(), metrics);
+					if (oldSize > data.capacity()) {
+						//clear whatever is left of the previous (larger) data
+						channel.position(file.getOffset() + data.capacity());
+						IOUtils.writePadding(channel, oldSize - data.capacity(), metrics);
+					}
+					writePosition = Math.max(writePosition, file.getOffset() + data.capacity());
+				}
+				for (BundleFile file : relocatedFiles) {
+					channel.position(writePosition);
+					IOUtils.writePadding(channel, file.getOffset() - writePosition, metrics);
+					IOUtils.writeFully(channel, ByteBuffer.wrap(file.getData()), file.getOffset(), metrics);
+					writePosition = file.getOffset() + file.getData().length;
+				}
+				
+				//update the descriptors of the modified files, and the header if the file has grown
+				ByteBuffer descriptor = ByteBuffer.allocate(BundleFile.DESCRIPTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				for (BundleFile file : modifiedFiles) {
+					descriptor.clear();
+					file.writeFileHeader(descriptor);
+					descriptor.flip();
+					IOUtils.writeFully(channel, descriptor, HEADER_SIZE + (long)descriptorIndexes.get(file) * BundleFile.DESCRIPTOR_SIZE, metrics);
+				}
+				if (writePosition > reader.getTotalSize()) {
+					ByteBuffer totalSize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+					totalSize.putInt(0, IOUtils.toUInt32(writePosition, "bundle size"));
+					IOUtils.writeFully(channel, totalSize, 8, metrics);
+				}
+				
+				channel.force(true);
+			}
+			
+			if (! journal.delete()) {
+				throw new IOException("Bundle was patched, but the journal could not be removed:  " + journal.getAbsolutePath());
+			}
+		}
+		
+		/**
+		 * Rolls back an interrupted in-place update of the given bundle, if there was one.  Returns true if the bundle 
+		 * was restored.
+		 */
+		public static boolean recover(String path, Metrics metrics) throws IOException {
+			File journal = new File(path + JOURNAL_SUFFIX);
+			if (! journal.exists()) {
+				return false;
+			}
+			
+			//the journal is only trusted if it was completely written (and so the bundle may have been modified); otherwise the bundle was never touched
+			boolean complete;
+			try (InputStream in = new FileInputStream(journal)) {
+				complete = readJournal(in, null, metrics);
+			}
+			
+			if (complete) {
+				try (InputStream in = new FileInputStream(journal); RandomAccessFile bundle = new RandomAccessFile(path, "rw")) {
+					readJournal(in, bundle.getChannel(), metrics);
+					bundle.getChannel().force(true);
+				}
+			}
+			
+			if (! journal.delete()) {
+				throw new IOException("Failed to remove journal file:  " + journal.getAbsolutePath());
+			}
+			return complete;
+		}
+		
+		private static void writeJournal(File journal, FileChannel bundle, long fileLength, List<long[]> regions) throws IOException {
+			try (FileOutputStream journalFile = new FileOutputStream(journal)) {
+				CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(journalFile, 64 * 1024), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				out.writeLong(JOURNAL_MAGIC);
+				out.writeLong(fileLength);
+				out.writeInt(regions.size());
+				for (long[] region : regions) {
+					ByteBuffer original = ByteBuffer.allocate(IOUtils.toArraySize(region[1], "journaled region at " + region[0]));
+					while (original.hasRemaining()) {
+						if (bundle.read(original, region[0] + original.position()) < 0) {
+							throw new IOException("Unexpected end of bundle while journaling; position=" + region[0]);
+						}
+					}
+					out.writeLong(region[0]);
+					out.writeInt(original.capacity());
+					out.write(original.array());
+				}
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+				journalFile.getFD().sync();
+			}
+		}
+		
+		/**
+		 * Reads through a journal, restoring its contents into 'bundle' if one is provided.  Returns false if the journal 
+		 * is truncated or fails its checksum.
+		 */
+		private static boolean readJournal(InputStream journal, FileChannel bundle, Metrics metrics) throws IOException {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(journal, 64 * 1024), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			try {
+				if (in.readLong() != JOURNAL_MAGIC) {
+					return false;
+				}
+				long fileLength = in.readLong();
+				int numRegions = in.readInt();
+				for (int index = 0; index < numRegions; index++) {
+					long position = in.readLong();
+					byte[] original = new byte[in.readInt()];
+					in.readFully(original);
+					if (bundle != null) {
+						IOUtils.writeFully(bundle, ByteBuffer.wrap(original), position, metrics);
+					}
+				}
+				
+				long checksum = checked.getChecksum().getValue();
+				if (in.readLong() != checksum) {
+					return false;
+				}
+				if (bundle != null) {
+					bundle.truncate(fileLength);
+				}
+				return true;
+			}
+			catch (EOFException e) {
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Looks after the 'metadata.store' file of a content directory when we change one of its bundles.  The game uses the 
+	 * store as an index of the contents of every bundle in the directory, so once a bundle has changed, the store no 
+	 * longer matches it.
+	 * 
+	 * If a Format has been registered, the changed bundle's records are updated in the store from the descriptors that 
+	 * were just written, which works for DLC as well (the game rebuilds a missing store for the base game, but not for 
+	 * a DLC).  Before the first update the store is copied to 'metadata.store.bak', so the original is kept.  No Format 
+	 * is built in yet, since the store's layout hasn't been worked out.
+	 * 
+	 * Without a Format, or if the registered one doesn't recognise the store, the store is left alone with a warning 
+	 * (once per store).  With '--reset-metadata', a stale store is moved aside instead, which makes the game rebuild it 
+	 * on its next launch.  A store is only ever moved to a backup name that isn't taken yet, so no copy of it is ever 
+	 * lost.  A DLC's store is never moved aside, since the game wouldn't rebuild it; it's left as it is, with a warning.
+	 */
+	private static class MetadataStore {
+		public static final String FILENAME = "metadata.store";
+		private static final String BACKUP_SUFFIX = ".bak";
+		
+		public static interface Format {
+			/**
+			 * Updates the records of one bundle in the given store, from the bundle's descriptors (as written).  Returns 
+			 * false, without changing anything, if the store isn't in a form this implementation understands, or its 
+			 * records don't line up with the bundle.
+			 */
+			public boolean update(Path store, String bundleName, List<BundleFile> files) throws IOException;
+		}
+		
+		private static volatile Format format = null;
+		private static final Set<Path> warnedStores = new HashSet<>();
+		
+		public static void register(Format format) {
+			MetadataStore.format = format;
+		}
+		
+		/**
+		 * Deals with the store next to the given bundle after the bundle has been written or patched; its records are 
+		 * updated if there's a Format for it, and otherwise it's moved aside if 'reset' is set.  Files that the game won't 
+		 * load as bundles, and directories without a store, are ignored.
+		 */
+		public static synchronized void bundleChanged(String bundlePath, boolean reset, Metrics metrics) throws IOException {
+			Path bundle = Paths.get(bundlePath).toAbsolutePath();
+			Path store = bundle.resolveSibling(FILENAME);
+			if (! bundle.getFileName().toString().toLowerCase().endsWith(".bundle") || ! Files.isRegularFile(store)) {
+				return;
+			}
+			
+			Format format = MetadataStore.format;
+			if (format != null) {
+				List<BundleFile> files;
+				try (BundleReader reader = new BundleReader(bundle.toString(), metrics)) {
+					files = reader.getFiles();
+				}
+				Path backup = store.resolveSibling(FILENAME + BACKUP_SUFFIX);
+				if (! Files.exists(backup)) {
+					Files.copy(store, backup);
+				}
+				if (format.update(store, bundle.getFileName().toString(), files)) {
+					System.out.println("Updated the records of '" + bundle.getFileName() + "' in '" + store + "'.");
+					return;
+				}
+			}
+			
+			if (isDlc(bundle)) {
+				if (warnedStores.add(store)) {
+					System.out.println("WARN:  '" + store + "' no longer matches '" + bundle.getFileName() + "', and the game won't rebuild it for a DLC; the DLC may not load.");
+				}
+				return;
+			}
+			if (! reset) {
+				if (warnedStores.add(store)) {
+					System.out.println("WARN:  '" + store + "' no longer matches '" + bundle.getFileName() + "'; if the game doesn't pick up the change, pass '--reset-metadata' to have the store rebuilt.");
+				}
+				return;
+			}
+			
+			//the first backup is the original store; any later ones were rebuilt by the game since, and are kept as well
+			Path backup = store.resolveSibling(FILENAME + BACKUP_SUFFIX);
+			for (int index = 1; Files.exists(backup); index++) {
+				backup = store.resolveSibling(FILENAME + BACKUP_SUFFIX + index);
+			}
+			Files.move(store, backup);
+			System.out.println("Moved '" + store + "' to '" + backup.getFileName() + "', since it no longer matches '" + bundle.getFileName() + "'; the game will rebuild it on its next launch.");
+		}
+		
+		private static boolean isDlc(Path bundle) {
+			for (Path part : bundle) {
+				if ("dlc".equalsIgnoreCase(part.toString())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Records what went into an output bundle, so that a later run can bring it up to date without rebuilding it.  The 
+	 * manifest is saved next to the output as '<output>.manifest', and holds the size and modification time of both the 
+	 * input and the output bundles, the compression settings and hash scheme, and a fingerprint (size, modification time 
+	 * and xxHash64 of the content) of the mod file used for every overridden entry.
+	 * 
+	 * The manifest is only trusted when the input and output are exactly as they were when it was saved; anything else 
+	 * (including a damaged manifest) means the output is rebuilt from scratch.
+	 */
+	private static class BuildManifest {
+		private static final String MANIFEST_SUFFIX = ".manifest";
+		private static final long MANIFEST_MAGIC = 0x4258_4D41_4E49_4632L;		//"BXMANIF2"
+		
+		private final long inputSize;
+		private final long inputModifyTime;
+		private final String compressionSpec;
+		private final String hashScheme;
+		private long outputSize;
+		private long outputModifyTime;
+		private final Map<Integer, Fingerprint> overrides = new TreeMap<>();		//keyed by descriptor index
+		
+		public BuildManifest(String input, String compressionSpec, EntryHasher hasher) throws IOException {
+			this(Files.size(Paths.get(input)), Files.getLastModifiedTime(Paths.get(input)).toMillis(), compressionSpec, getScheme(hasher));
+		}
+		
+		private BuildManifest(long inputSize, long inputModifyTime, String compressionSpec, String hashScheme) {
+			this.inputSize = inputSize;
+			this.inputModifyTime = inputModifyTime;
+			this.compressionSpec = compressionSpec == null ? "" : compressionSpec;
+			this.hashScheme = hashScheme;
+		}
+		
+		private static String getScheme(EntryHasher hasher) {
+			return hasher == null ? "" : hasher.getName().toLowerCase();
+		}
+		
+		/**
+		 * Fingerprint of the mod file used to override an entry.
+		 */
+		private static class Fingerprint {
+			private final long size;
+			private final long modifyTime;
+			private final long hash;
+			
+			public Fingerprint(long size, long modifyTime, long hash) {
+				this.size = size;
+				this.modifyTime = modifyTime;
+				this.hash = hash;
+			}
+			
+			/**
+			 * Returns true if the mod file looks untouched since the fingerprint was taken, without reading it.
+			 */
+			public boolean isUnchanged(File modFile) {
+				return modFile.length() == size && modFile.lastModified() == modifyTime;
+			}
+			
+			public long getHash() {
+				return hash;
+			}
+		}
+		
+		public static Fingerprint fingerprint(File modFile, byte[] content) {
+			return new Fingerprint(content.length, modFile.lastModified(), XxHash64.hash(content, 0, content.length, 0));
+		}
+		
+		public void put(int descriptorIndex, Fingerprint fingerprint) {
+			overrides.put(descriptorIndex, fingerprint);
+		}
+		
+		public Fingerprint get(int descriptorIndex) {
+			return overrides.get(descriptorIndex);
+		}
+		
+		public int size() {
+			return overrides.size();
+		}
+		
+		/**
+		 * Returns true if the input and output bundles are still the ones this manifest was saved for, and the output was 
+		 * built with the same compression settings and hash scheme.
+		 */
+		public boolean matches(String input, String output, String compressionSpec, EntryHasher hasher) throws IOException {
+			Path inputPath = Paths.get(input);
+			Path outputPath = Paths.get(output);
+			return Files.size(inputPath) == inputSize && Files.getLastModifiedTime(inputPath).toMillis() == inputModifyTime && 
+					Files.size(outputPath) == outputSize && Files.getLastModifiedTime(outputPath).toMillis() == outputModifyTime && 
+					this.compressionSpec.equals(compressionSpec == null ? "" : compressionSpec) && hashScheme.equals(getScheme(hasher));
+		}
+		
+		/**
+		 * Saves the manifest for the given (completely written) output bundle.
+		 */
+		public void save(String output) throws IOException {
+			outputSize = Files.size(Paths.get(output));
+			outputModifyTime = Files.getLastModifiedTime(Paths.get(output)).toMillis();
+			
+			Path temp = Paths.get(output + MANIFEST_SUFFIX + ".tmp");
+			try (OutputStream file = Files.newOutputStream(temp)) {
+				CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				out.writeLong(MANIFEST_MAGIC);
+				out.writeLong(inputSize);
+				out.writeLong(inputModifyTime);
+				out.writeLong(outputSize);
+				out.writeLong(outputModifyTime);
+				out.writeUTF(compressionSpec);
+				out.writeUTF(hashScheme);
+				out.writeInt(overrides.size());
+				for (Map.Entry<Integer, Fingerprint> override : overrides.entrySet()) {
+					out.writeInt(override.getKey());
+					out.writeLong(override.getValue().size);
+					out.writeLong(override.getValue().modifyTime);
+					out.writeLong(override.getValue().hash);
+				}
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+			}
+			Files.move(temp, Paths.get(output + MANIFEST_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		/**
+		 * Loads the manifest saved for the given output bundle, or returns null if there isn't one (or it is damaged).
+		 */
+		public static BuildManifest load(String output) throws IOException {
+			File manifestFile = new File(output + MANIFEST_SUFFIX);
+			if (! manifestFile.exists()) {
+				return null;
+			}
+			
+			try (InputStream file = new FileInputStream(manifestFile)) {
+				CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 64 * 1024), new CRC32());
+				DataInputStream in = new DataInputStream(checked);
+				if (in.readLong() != MANIFEST_MAGIC) {
+					return null;
+				}
+				long inputSize = in.readLong();
+				long inputModifyTime = in.readLong();
+				long outputSize = in.readLong();
+				long outputModifyTime = in.readLong();
+				String compressionSpec = in.readUTF();
+				BuildManifest manifest = new BuildManifest(inputSize, inputModifyTime, compressionSpec, in.readUTF());
+				manifest.outputSize = outputSize;
+				manifest.outputModifyTime = outputModifyTime;
+				int numOverrides = in.readInt();
+				for (int index = 0; index < numOverrides; index++) {
+					manifest.put(in.readInt(), new Fingerprint(in.readLong(), in.readLong(), in.readLong()));
+				}
+				
+				long checksum = checked.getChecksum().getValue();
+				return in.readLong() == checksum ? manifest : null;
+			}
+			catch (EOFException e) {
+				return null;
+			}
+		}
+		
+		public static void delete(String output) throws IOException {
+			Files.deleteIfExists(Paths.get(output + MANIFEST_SUFFIX));
+		}
+	}
+	
+	/**
+	 * 64-bit xxHash (XXH64), used to fingerprint file content.  Much faster than a cryptographic hash, and more than good 
+	 * enough for telling whether a file has changed.
+	 */
+	private static class XxHash64 {
+		private static final long PRIME1 = 0x9E37_79B1_85EB_CA87L;
+		private static final long PRIME2 = 0xC2B2_AE3D_27D4_EB4FL;
+		private static final long PRIME3 = 0x1656_67B1_9E37_79F9L;
+		private static final long PRIME4 = 0x85EB_CA77_C2B2_AE63L;
+		private static final long PRIME5 = 0x27D4_EB2F_1656_67C5L;
+		
+		public static long hash(byte[] data, int offset, int length, long seed) {
+			return hash(ByteBuffer.wrap(data, offset, length), seed);
+		}
+		
+		/**
+		 * Hashes the remaining bytes of 'data', without moving its position.
+		 */
+		public static long hash(ByteBuffer data, long seed) {
+			ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int position = in.position();
+			int end = in.limit();
+			int length = end - position;
+			long hash;
+			if (length >= 32) {
+				long v1 = seed + PRIME1 + PRIME2;
+				long v2 = seed + PRIME2;
+				long v3 = seed;
+				long v4 = seed - PRIME1;
+				do {
+					v1 = round(v1, in.getLong(position));
+					v2 = round(v2, in.getLong(position + 8));
+					v3 = round(v3, in.getLong(position + 16));
+					v4 = round(v4, in.getLong(position + 24));
+					position += 32;
+				} while (position <= end - 32);
+				
+				hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				hash = mergeRound(hash, v1);
+				hash = mergeRound(hash, v2);
+				hash = mergeRound(hash, v3);
+				hash = mergeRound(hash, v4);
+			}
+			else {
+				hash = seed + PRIME5;
+			}
+			hash += length;
+			
+			//consume whatever is left over, 8, 4, and then 1 byte at a time
+			for (; position + 8 <= end; position += 8) {
+				hash ^= round(0, in.getLong(position));
+				hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+			}
+			if (position + 4 <= end) {
+				hash ^= (in.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+				hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+				position += 4;
+			}
+			for (; position < end; position++) {
+				hash ^= (in.get(position) & 0xFF) * PRIME5;
+				hash = Long.rotateLeft(hash, 11) * PRIME1;
+			}
+			
+			//final mix
+			hash ^= hash >>> 33;
+			hash *= PRIME2;
+			hash ^= hash >>> 29;
+			hash *= PRIME3;
+			hash ^= hash >>> 32;
+			return hash;
+		}
+		
+		private static long round(long accumulator, long input) {
+			accumulator += input * PRIME2;
+			accumulator = Long.rotateLeft(accumulator, 31);
+			return accumulator * PRIME1;
+		}
+		
+		private static long mergeRound(long accumulator, long value) {
+			accumulator ^= round(0, value);
+			return accumulator * PRIME1 + PRIME4;
+		}
+	}
+	
+	/**
+	 * Index of the files under a mod directory, built with a single walk of the directory tree.  Files are keyed by 
+	 * their path relative to the mod directory, normalized to match the way the game names files (backslash separators, 
+	 * compared case-insensitively), so bundle descriptors can be joined against it without touching the filesystem.  The 
+	 * index also keeps track of which mod files were matched, so that anything that didn't match can be reported.
+	 */
+	private static class ModIndex {
+		private final Map<String, File> files = new HashMap<>();
+		private final Map<String, String> relativePaths = new HashMap<>();
+		private final Map<String, List<File>> layers = new HashMap<>();		//every mod file for an entry that more than one mod directory overrides, in priority order (lowest first)
+		private final Set<String> matched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		
+		public ModIndex(String modRoot) throws IOException {
+			this(Collections.singletonList(modRoot));
+		}
+		
+		/**
+		 * Merges several mod directories into a single set of overrides.  When more than one of them overrides the same 
+		 * entry, the one that comes later in the list wins (just as if the mods had been installed one after another), 
+		 * and the conflict is recorded.
+		 */
+		public ModIndex(List<String> modRoots) throws IOException {
+			for (String modRoot : modRoots) {
+				final Path root = Paths.get(modRoot);
+				if (! Files.isDirectory(root)) {
+					throw new IOException("Mod directory does not exist:  " + modRoot);
+				}
+				
+				final Map<String, Path> seen = new HashMap<>();		//the files found under this mod directory so far
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						StringBuilder name = new StringBuilder();
+						for (Path part : root.relativize(file)) {
+							if (name.length() > 0) {
+								name.append('\\');
+							}
+							name.append(part.toString());
+						}
+						
+						String key = normalize(name.toString());
+						Path first = seen.get(key);
+						if (first != null) {
+							System.out.println("WARN:  Modded files '" + first + "' and '" + file + "' refer to the same bundle entry; only the first will be used.");
+							return FileVisitResult.CONTINUE;
+						}
+						seen.put(key, file);
+						
+						File previous = files.put(key, file.toFile());
+						if (previous != null) {
+							List<File> layered = layers.get(key);
+							if (layered == null) {
+								layered = new ArrayList<>();
+								layered.add(previous);
+								layers.put(key, layered);
+							}
+							layered.add(file.toFile());
+						}
+						relativePaths.put(key, name.toString());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		}
+		
+		public static String normalize(String path) {
+			return path.replace('/', '\\').toLowerCase(Locale.ROOT);
+		}
+		
+		/**
+		 * Returns the mod file that overrides the named bundle entry (and records it as matched), or null if there isn't one.
+		 */
+		public File get(String filename) {
+			String key = normalize(filename);
+			File file = files.get(key);
+			if (file != null) {
+				matched.add(key);
+			}
+			return file;
+		}
+		
+		/**
+		 * Returns the relative paths of all of the mod files that haven't matched a bundle entry.
+		 */
+		public List<String> getUnmatched() {
+			List<String> unmatched = new ArrayList<>();
+			for (String key : files.keySet()) {
+				if (! matched.contains(key)) {
+					unmatched.add(relativePaths.get(key));
+				}
+			}
+			Collections.sort(unmatched);
+			return unmatched;
+		}
+		
+		public int size() {
+			return files.size();
+		}
+		
+		/**
+		 * Reports every entry that has been matched so far and is overridden by more than one mod directory, along with 
+		 * the size and a fingerprint (xxHash64) of each mod's version of it, so that it's clear which mods disagree.
+		 */
+		public void reportConflicts(Metrics metrics) throws IOException {
+			List<String> keys = new ArrayList<>();
+			for (String key : layers.keySet()) {
+				if (matched.contains(key)) {
+					keys.add(key);
+				}
+			}
+			Collections.sort(keys);
+			
+			int numIdentical = 0;
+			for (String key : keys) {
+				StringBuilder versions = new StringBuilder();
+				Set<Long> hashes = new HashSet<>();
+				for (File file : layers.get(key)) {
+					byte[] data = IOUtils.readFile(file, metrics);
+					long hash = XxHash64.hash(data, 0, data.length, 0);
+					hashes.add(hash);
+					versions.append(versions.length() > 0 ? ", " : "").append("'").append(file.getPath()).append("' (").append(data.length).append(" bytes, xxh64=").append(Long.toHexString(hash)).append(")");
+				}
+				if (hashes.size() == 1) {
+					numIdentical++;		//every mod has the same version, so it doesn't matter which one wins
+					continue;
+				}
+				System.out.println("WARN:  Conflict:  " + relativePaths.get(key) + " is overridden by " + layers.get(key).size() + " mods; " + versions + "; the last one is used.");
+			}
+			if (numIdentical > 0) {
+				System.out.println(numIdentical + " files are overridden by more than one mod, but with identical content.");
+			}
+		}
+	}
+	
+	/**
+	 * Applies one mod directory to every bundle under a game 'content' directory, in a single run.  The mod directory is 
+	 * indexed once, each bundle's descriptor table is joined against the index, and every bundle that contains at least 
+	 * one modded file is patched in place.  Bundles are handled concurrently on a bounded thread pool.
+	 */
+	private static class BatchPatcher {
+		private final String contentRoot;
+		private final List<String> modRoots;
+		private final int numThreads;
+		private final String compressionSpec;
+		private final EntryHasher hasher;
+		private final boolean resetMetadata;
+		private final Metrics metrics;
+		
+		public BatchPatcher(String contentRoot, List<String> modRoots, List<String> flags, Metrics metrics) {
+			this.contentRoot = contentRoot;
+			this.modRoots = modRoots;
+			this.metrics = metrics;
+			
+			String threads = getOption(flags, "--threads");
+			this.numThreads = threads == null ? Math.min(4, Runtime.getRuntime().availableProcessors()) : Integer.parseInt(threads);
+			this.compressionSpec = getOption(flags, "--compress");
+			this.hasher = Hashes.get(getOption(flags, "--hash"));
+			this.resetMetadata = flags.contains("--reset-metadata");
+		}
+		
+		public void run() throws IOException, InterruptedException {
+			long startTime = System.nanoTime();
+			Metrics.Phase phase = metrics.start("batch");
+			
+			final ModIndex modIndex = new ModIndex(modRoots);
+			List<Path> bundles = findBundles(Paths.get(contentRoot));
+			System.out.println("Applying " + modIndex.size() + " modded files to " + bundles.size() + " bundles under '" + contentRoot + "' using " + numThreads + " threads...");
+			
+			final CompressionStage compressor = compressionSpec == null ? null : new CompressionStage(compressionSpec);
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			List<Future<Integer>> results = new ArrayList<>();
+			for (final Path bundle : bundles) {
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						return patchBundle(bundle.toString(), modIndex, compressor);
+					}
+				}));
+			}
+			pool.shutdown();
+			
+			int numPatched = 0;
+			int numOverridden = 0;
+			int numFailed = 0;
+			for (int index = 0; index < bundles.size(); index++) {
+				try {
+					int numFiles = results.get(index).get();
+					if (numFiles > 0) {
+						numPatched++;
+						numOverridden += numFiles;
+					}
+				}
+				catch (ExecutionException e) {
+					numFailed++;
+					System.out.println("ERROR:  Failed to patch bundle " + bundles.get(index) + ", detailed error message follows;");
+					e.getCause().printStackTrace();
+				}
+			}
+			if (compressor != null) {
+				compressor.shutdown();
+			}
+			
+			for (String unmatched : modIndex.getUnmatched()) {
+				System.out.println("WARN:  Modded file " + unmatched + " does not exist in any bundle; it was not installed.");
+			}
+			modIndex.reportConflicts(metrics);
+			
+			phase.end();
+			System.out.println("Batch complete; patched " + numPatched + " / " + bundles.size() + " bundles (" + numOverridden + " files overridden, " + numFailed + " failures) in " 
+					+ ((System.nanoTime() - startTime) / 1000000) + "ms.");
+		}
+		
+		/**
+		 * Patches the given bundle in place with any matching mod files, and returns the number of files that were overridden.
+		 */
+		private int patchBundle(String path, ModIndex modIndex, CompressionStage compressor) throws Exception {
+			if (InPlacePatcher.recover(path, metrics)) {
+				System.out.println("WARN:  Found an incomplete in-place update of '" + path + "'; the bundle has been restored to its previous state.");
+			}
+			
+			try (BundleReader reader = new BundleReader(path, metrics)) {
+				List<BundleFile> modifiedFiles = applyMods(reader.getFiles(), modIndex, false, hasher, metrics);
+				if (modifiedFiles.isEmpty()) {
+					return 0;
+				}
+				
+				if (compressor != null) {
+					for (BundleFile file : modifiedFiles) {
+						compressor.compress(file);
+					}
+				}
+				new InPlacePatcher(reader, metrics).patch(modifiedFiles);
+				MetadataStore.bundleChanged(path, resetMetadata, metrics);
+				
+				System.out.println("Patched " + modifiedFiles.size() + " files in '" + path + "'.");
+				return modifiedFiles.size();
+			}
+		}
+	}
+	
+	/**
+	 * Selects entries by matching their names against a list of glob patterns ('*' and '?' stay within one directory 
+	 * level, '**' crosses levels) or regular expressions (matched against the name as stored), compared 
+	 * case-insensitively; globs accept either kind of path separator.  With no patterns, everything matches.
+	 */
+	private static class EntryFilter {
+		private final List<Pattern> patterns = new ArrayList<>();
+		private final boolean regex;
+		
+		public EntryFilter(List<String> patterns, boolean regex) {
+			this.regex = regex;
+			for (String pattern : patterns) {
+				this.patterns.add(regex ? Pattern.compile(pattern, Pattern.CASE_INSENSITIVE) : globToPattern(ModIndex.normalize(pattern)));
+			}
+		}
+		
+		public static Pattern globToPattern(String glob) {
+			StringBuilder regex = new StringBuilder();
+			for (int index = 0; index < glob.length(); index++) {
+				char c = glob.charAt(index);
+				if (c == '*' && index + 1 < glob.length() && glob.charAt(index + 1) == '*') {
+					regex.append(".*");
+					index++;
+				}
+				else if (c == '*') {
+					regex.append("[^\\\\]*");
+				}
+				else if (c == '?') {
+					regex.append("[^\\\\]");
+				}
+				else {
+					regex.append(Pattern.quote(String.valueOf(c)));
+				}
+			}
+			return Pattern.compile(regex.toString());
+		}
+		
+		/**
+		 * Returns true if the named entry is selected.  A glob has to match the whole name, while a regex only has to 
+		 * match part of it (as with grep).
+		 */
+		public boolean matches(String filename) {
+			if (patterns.isEmpty()) {
+				return true;
+			}
+			String normalized = ModIndex.normalize(filename);
+			for (Pattern pattern : patterns) {
+				if (regex ? pattern.matcher(filename).find() : pattern.matcher(normalized).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the contents of a bundle out to a directory tree, one file per entry.  Entries are selected with an 
+	 * EntryFilter; with no patterns, everything is written.
+	 * 
+	 * Entries are written concurrently.  Uncompressed entries are copied straight from the input bundle to their output 
+	 * file with FileChannel.transferTo, and compressed entries are decoded on the ParallelDecoder into pooled buffers, so 
+	 * only as many entries are held in memory as there are worker threads.
+	 */
+	private static class Extractor {
+		private final EntryFilter filter;
+		private final ForkJoinPool pool = new ForkJoinPool();
+		private final ParallelDecoder decoder;
+		private final Metrics metrics;
+		
+		public Extractor(List<String> patterns, boolean regex, Metrics metrics) {
+			this.filter = new EntryFilter(patterns, regex);
+			this.decoder = new ParallelDecoder(pool, BufferPool.SHARED, metrics);
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * Returns true if the named entry should be extracted.
+		 */
+		public boolean matches(String filename) {
+			return filter.matches(filename);
+		}
+		
+		public void extract(String bundlePath, Path outputRoot) throws IOException, InterruptedException, ExecutionException {
+			try (BundleReader reader = new BundleReader(bundlePath, metrics)) {
+				extract(reader, outputRoot);
+			}
+		}
+		
+		/**
+		 * Extracts the matching entries of an open bundle, and returns an error message for each entry that couldn't be 
+		 * extracted.  The reader is only read from, so it can be shared with other threads.
+		 */
+		public List<String> extract(final BundleReader reader, final Path outputRoot) throws IOException, InterruptedException, ExecutionException {
+			long startTime = System.nanoTime();
+			Metrics.Phase phase = metrics.start("extract");
+			List<BundleFile> storedFiles = new ArrayList<>();
+			List<BundleFile> compressedFiles = new ArrayList<>();
+			for (BundleFile file : reader.getFiles()) {
+				if (! matches(file.getFilename())) {
+					continue;
+				}
+				if (file.getCompressionAlgo() == 0 && file.getCompressedSize() == file.getUncompressedSize()) {
+					storedFiles.add(file);
+				}
+				else {
+					compressedFiles.add(file);
+				}
+			}
+			System.out.println("Extracting " + (storedFiles.size() + compressedFiles.size()) + " / " + reader.getFiles().size() + " files from '" + reader.getPath() + "' to '" + outputRoot + "'...");
+			
+			final AtomicLong numBytes = new AtomicLong();
+			List<String> failures = new ArrayList<>();
+			
+			//uncompressed entries never need to pass through the heap; copy them channel-to-channel
+			List<Callable<Void>> copies = new ArrayList<>();
+			for (final BundleFile file : storedFiles) {
+				copies.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						try (FileChannel out = openOutput(outputRoot, file)) {
+							IOUtils.transferFully(reader.getChannel(), file.getSourceOffset(), file.getCompressedSize(), out, metrics);
+						}
+						numBytes.addAndGet(file.getCompressedSize());
+						return null;
+					}
+				});
+			}
+			List<Future<Void>> results = pool.invokeAll(copies);
+			for (int index = 0; index < results.size(); index++) {
+				try {
+					results.get(index).get();
+				}
+				catch (ExecutionException e) {
+					failures.add(storedFiles.get(index).getFilename() + ":  " + e.getCause().getMessage());
+				}
+			}
+			
+			//everything else is decoded in parallel, and written out from the decode buffer
+			failures.addAll(decoder.decodeAll(reader, compressedFiles, new ParallelDecoder.EntryHandler() {
+				@Override
+				public void handle(BundleFile file, byte[] data, int length) throws IOException {
+					try (FileChannel out = openOutput(outputRoot, file)) {
+						IOUtils.writeFully(out, ByteBuffer.wrap(data, 0, length), metrics);
+					}
+					numBytes.addAndGet(length);
+				}
+			}));
+			
+			phase.end();
+			for (String failure : failures) {
+				System.out.println("WARN:  Failed to extract " + failure);
+			}
+			System.out.println("Extracted " + (storedFiles.size() + compressedFiles.size() - failures.size()) + " files (" + numBytes.get() + " bytes) in " 
+					+ ((System.nanoTime() - startTime) / 1000000) + "ms.");
+			return failures;
+		}
+		
+		/**
+		 * Creates the output file for the given entry (along with any missing directories), refusing names that would 
+		 * place it outside of the output directory.
+		 */
+		private static FileChannel openOutput(Path outputRoot, BundleFile file) throws IOException {
+			Path target = outputRoot;
+			for (String part : file.getFilename().split("[\\\\/]")) {
+				if (part.isEmpty() || ".".equals(part)) {
+					continue;
+				}
+				if ("..".equals(part) || part.contains(":")) {
+					throw new IOException("Refusing to extract to a path outside of the output directory:  " + file.getFilename());
+				}
+				target = target.resolve(part);
+			}
+			if (target.equals(outputRoot)) {
+				throw new IOException("Entry has no usable name");
+			}
+			
+			Files.createDirectories(target.getParent());
+			return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		
+		public void shutdown() {
+			decoder.shutdown();
+		}
+	}
+	
+	/**
+	 * Checks bundles for damage without modifying them.  The structural checks cover the header (the total size against 
+	 * the actual file size, and a descriptor table that holds a whole number of descriptors) and every descriptor:  that 
+	 * its data lies within the data area of the bundle, is aligned to ALIGNMENT_TARGET, uses a known compression algo, 
+	 * and doesn't partially overlap another entry's data (entries that share exactly the same data are fine).  Every entry 
+	 * is then decoded on the ParallelDecoder and checked against its 'uncompressedSize'.
+	 * 
+	 * The hash stored in each descriptor can't be checked yet, since the game's hash scheme hasn't been identified (it 
+	 * isn't MD5).  If an EntryHasher is given, the hash is recomputed from the decoded data of every entry, on all cores, 
+	 * and compared against the stored one.
+	 */
+	private static class Verifier {
+		private final EntryHasher hasher;
+		private final ForkJoinPool pool = new ForkJoinPool();
+		private final ParallelDecoder decoder;
+		private final Metrics metrics;
+		
+		public Verifier(EntryHasher hasher, Metrics metrics) {
+			this.hasher = hasher;
+			this.decoder = new ParallelDecoder(pool, BufferPool.SHARED, metrics);
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * Verifies the given bundle, and returns a description of each problem found (an empty list means the bundle is intact).
+		 */
+		public List<String> verify(String path) throws InterruptedException, ExecutionException {
+			try (BundleReader reader = new BundleReader(path, metrics)) {
+				return verify(reader);
+			}
+			catch (IOException e) {
+				return Collections.singletonList("the bundle could not be read:  " + e.getMessage());
+			}
+		}
+		
+		/**
+		 * Verifies an open bundle.  The reader is only read from, so it can be shared with other threads.
+		 */
+		public List<String> verify(final BundleReader reader) throws IOException, InterruptedException, ExecutionException {
+			long startTime = System.nanoTime();
+			final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+			final long fileSize = reader.getChannel().size();
+			final long dataStart = HEADER_SIZE + reader.getDataOffset();
+			if (reader.getTotalSize() != fileSize) {
+				problems.add("header:  total size is " + reader.getTotalSize() + " bytes, but the bundle is " + fileSize + " bytes long");
+			}
+			if (reader.getDataOffset() % BundleFile.DESCRIPTOR_SIZE != 0) {
+				problems.add("header:  the descriptor table (" + reader.getDataOffset() + " bytes) doesn't hold a whole number of " + BundleFile.DESCRIPTOR_SIZE + "-byte descriptors");
+			}
+			
+			//check the descriptors in parallel, a slice of the table per worker
+			final List<BundleFile> files = reader.getFiles();
+			final List<BundleFile> decodable = Collections.synchronizedList(new ArrayList<BundleFile>());
+			int numSlices = pool.getParallelism();
+			List<Callable<Void>> checks = new ArrayList<>();
+			for (int slice = 0; slice < numSlices; slice++) {
+				final int start = (int)((long)files.size() * slice / numSlices);
+				final int end = (int)((long)files.size() * (slice + 1) / numSlices);
+				checks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int index = start; index < end; index++) {
+							if (checkDescriptor(files.get(index), dataStart, Math.min(fileSize, reader.getTotalSize()), problems)) {
+								decodable.add(files.get(index));
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> result : pool.invokeAll(checks)) {
+				result.get();
+			}
+			
+			checkOverlaps(files, problems);
+			
+			//decode everything that lies within the bundle, recomputing the hashes if we know how
+			List<String> failures = decoder.decodeAll(reader, new ArrayList<>(decodable), hasher == null ? null : new ParallelDecoder.EntryHandler() {
+				@Override
+				public void handle(BundleFile file, byte[] data, int length) {
+					byte[] hash = hasher.hash(data, length);
+					if (! Arrays.equals(hash, file.getHash())) {
+						problems.add(file.getFilename() + ":  stored hash " + bytesToString(file.getHash()).trim() + " doesn't match the " + hasher.getName() + " hash of its content, " + bytesToString(hash).trim());
+					}
+				}
+			});
+			for (String failure : failures) {
+				problems.add(failure);
+			}
+			
+			System.out.println("Verified '" + reader.getPath() + "'; " + files.size() + " files, " + decodable.size() + " decoded" + (hasher == null ? "" : " and hashed with " + hasher.getName()) 
+					+ ", " + problems.size() + " problems found in " + ((System.nanoTime() - startTime) / 1000000) + "ms.");
+			return problems;
+		}
+		
+		/**
+		 * Reports every entry whose data partially overlaps another entry's data (entries may share identical data, 
+		 * though).  Partial overlaps can only be found by looking at the entries in offset order.
+		 */
+		public static void checkOverlaps(List<BundleFile> files, List<String> problems) {
+			List<BundleFile> sortedFiles = new ArrayList<>(files);
+			Collections.sort(sortedFiles, new BundleFileOffsetCompare());
+			BundleFile previous = null;
+			for (BundleFile file : sortedFiles) {
+				if (previous != null && file.getOffset() < previous.getOffset() + previous.getCompressedSize() 
+						&& ! (file.getOffset() == previous.getOffset() && file.getCompressedSize() == previous.getCompressedSize())) {
+					problems.add(file.getFilename() + ":  data at " + file.getOffset() + " overlaps the data of " + previous.getFilename() + " (" + previous.getOffset() + "-" 
+							+ (previous.getOffset() + previous.getCompressedSize()) + ")");
+				}
+				if (previous == null || file.getOffset() + file.getCompressedSize() > previous.getOffset() + previous.getCompressedSize()) {
+					previous = file;
+				}
+			}
+		}
+		
+		/**
+		 * Checks a single descriptor against the bundle's layout, and returns true if its data can be decoded.
+		 */
+		private static boolean checkDescriptor(BundleFile file, long dataStart, long dataEnd, List<String> problems) {
+			boolean inBounds = true;
+			if (file.getFilename().isEmpty()) {
+				problems.add("descriptor at offset " + file.getOffset() + ":  has no name");
+			}
+			if (file.getOffset() < dataStart || file.getOffset() + file.getCompressedSize() > dataEnd) {
+				problems.add(file.getFilename() + ":  data (" + file.getOffset() + "-" + (file.getOffset() + file.getCompressedSize()) + ") lies outside of the data area of the bundle (" 
+						+ dataStart + "-" + dataEnd + ")");
+				inBounds = false;
+			}
+			if (file.getOffset() % ALIGNMENT_TARGET != 0) {
+				problems.add(file.getFilename() + ":  offset " + file.getOffset() + " isn't aligned to " + ALIGNMENT_TARGET + " bytes");
+			}
+			if (Codecs.get(file.getCompressionAlgo()) == null) {
+				problems.add(file.getFilename() + ":  unknown compression algorithm " + file.getCompressionAlgo());
+				return false;
+			}
+			if (file.getCompressionAlgo() == 0 && file.getCompressedSize() != file.getUncompressedSize()) {
+				problems.add(file.getFilename() + ":  stored uncompressed, but its stored size (" + file.getCompressedSize() + ") differs from its size (" + file.getUncompressedSize() + ")");
+				return false;
+			}
+			return inBounds;
+		}
+		
+		public void shutdown() {
+			decoder.shutdown();
+		}
+	}
+	
+	/**
+	 * A long-running server for editor integrations and other tooling, so that a request doesn't have to pay for JVM 
+	 * startup, JIT warmup, and re-reading the bundle's descriptors every time.  Requests are JSON-RPC 2.0 messages, one 
+	 * per line, read from stdin (with responses written to stdout, and everything else that would normally be printed 
+	 * sent to stderr instead), or from any number of connections to a local TCP port.
+	 * 
+	 * Bundles are opened on first use and kept open, along with their parsed descriptor tables and mappings, until they 
+	 * change on disk.  Requests are handled concurrently on a thread pool.  Any number of requests can read from the same 
+	 * bundle at once, while a 'patch' request gets exclusive access to the bundle it writes (and any open handle to that 
+	 * bundle is closed, since its contents are about to change).
+	 * 
+	 * Methods (with their params):
+	 *   list     {bundle, patterns?, regex?}            the entries of the bundle, optionally filtered like 'extract'
+	 *   extract  {bundle, output, patterns?, regex?}    writes the matching entries out; returns the number written and any failures
+	 *   verify   {bundle, hash?}                        returns the problems found by the 'verify' command
+	 *   patch    {input, output?, mods, options?}       runs a patch, in place if there's no output; 'mods' is a directory or an array of 
+	 *                                                  them (merged, the last one winning), and 'options' are command line flags, 
+	 *                                                  which apply to this request only ('--metrics' returns the request's metrics)
+	 *   shutdown {}                                     stops the server once the response has been sent
+	 */
+	private static class Server {
+		private static final int PARSE_ERROR = -32700;
+		private static final int INVALID_REQUEST = -32600;
+		private static final int METHOD_NOT_FOUND = -32601;
+		private static final int INVALID_PARAMS = -32602;
+		private static final int SERVER_ERROR = -32000;
+		
+		/**
+		 * A bundle that is kept open between requests, along with the size and modification time it had when it was 
+		 * opened.  Once it's retired (because it has changed) it's no longer handed out, and it's closed as soon as the 
+		 * last request using it is done.
+		 */
+		private static class WarmBundle {
+			private final BundleReader reader;
+			private final long size;
+			private final long modifyTime;
+			private int users;				//guarded by 'bundles'
+			private boolean retired;		//guarded by 'bundles'
+			
+			public WarmBundle(BundleReader reader, long size, long modifyTime) {
+				this.reader = reader;
+				this.size = size;
+				this.modifyTime = modifyTime;
+			}
+		}
+		
+		/**
+		 * The lock of one bundle, which is only kept while some request holds it or is waiting for it.
+		 */
+		private static class BundleLock {
+			private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			private int users;		//guarded by 'locks'
+		}
+		
+		private final Map<String, WarmBundle> bundles = new HashMap<>();
+		private final Map<String, BundleLock> locks = new HashMap<>();
+		private final ExecutorService workers = Executors.newCachedThreadPool();
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		
+		/**
+		 * Serves requests from stdin until it's closed (or a 'shutdown' request arrives).
+		 */
+		public void serveStdin() throws IOException, InterruptedException {
+			PrintStream responses = System.out;
+			System.setOut(System.err);		//log output would corrupt the responses
+			
+			final Runnable connection = connection(new InputStreamReader(System.in, StandardCharsets.UTF_8), new OutputStreamWriter(responses, StandardCharsets.UTF_8));
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					connection.run();
+					stopped.countDown();		//stdin was closed
+				}
+			}, "server-stdin");
+			reader.setDaemon(true);
+			reader.start();
+			stopped.await();
+			shutdown();
+		}
+		
+		/**
+		 * Serves requests from connections to the given port on the loopback interface until a 'shutdown' request arrives.
+		 */
+		public void serveSocket(int port) throws IOException, InterruptedException {
+			final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+			System.out.println("Listening for JSON-RPC requests on " + server.getLocalSocketAddress() + "...");
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (! server.isClosed()) {
+						try {
+							Socket socket = server.accept();
+							Thread connection = new Thread(connection(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), 
+									"server-connection-" + socket.getPort());
+							connection.setDaemon(true);
+							connection.start();
+						}
+						catch (IOException e) {
+							if (! server.isClosed()) {
+								System.out.println("WARN:  Failed to accept a connection:  " + e.getMessage());
+							}
+						}
+					}
+				}
+			}, "server-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			stopped.await();
+			server.close();
+			shutdown();
+		}
+		
+		/**
+		 * Reads requests from one connection (on a thread of its own), handing each to a worker, and writes each response 
+		 * as soon as it's ready (so responses may come back in a different order than the requests were sent).  Once the 
+		 * client stops sending, the connection stays open until every request it sent has been answered.
+		 */
+		private Runnable connection(final Reader in, final Writer out) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					final Phaser pending = new Phaser(1);		//one party for the connection, and one per request in progress
+					try (BufferedReader requests = new BufferedReader(in); final Writer responses = new BufferedWriter(out)) {
+						try {
+							String line;
+							while ((line = requests.readLine()) != null && stopped.getCount() > 0) {
+								if (line.trim().isEmpty()) {
+									continue;
+								}
+								final String request = line;
+								pending.register();
+								try {
+									workers.execute(new Runnable() {
+										@Override
+										public void run() {
+											try {
+												String response = handle(request);
+												synchronized (responses) {
+													responses.write(response);
+													responses.write('\n');
+													responses.flush();
+												}
+											}
+											catch (IOException e) {
+												System.out.println("WARN:  Failed to send a response:  " + e.getMessage());
+											}
+											finally {
+												pending.arriveAndDeregister();
+											}
+										}
+									});
+								}
+								catch (RejectedExecutionException e) {
+									pending.arriveAndDeregister();		//the server is shutting down
+								}
+							}
+						}
+						finally {
+							pending.arriveAndAwaitAdvance();
+						}
+					}
+					catch (IOException e) {
+						System.out.println("WARN:  Connection failed:  " + e.getMessage());
+					}
+				}
+			};
+		}
+		
+		/**
+		 * Handles a single JSON-RPC request, and returns the response.
+		 */
+		private String handle(String request) {
+			Object id = null;
+			try {
+				Object message;
+				try {
+					message = Json.parse(request);
+				}
+				catch (IllegalArgumentException e) {
+					return error(null, PARSE_ERROR, e.getMessage());
+				}
+				if (! (message instanceof Map)) {
+					return error(null, INVALID_REQUEST, "Request must be a JSON object");
+				}
+				
+				Map<?, ?> call = (Map<?, ?>)message;
+				id = call.get("id");
+				Object params = call.get("params");
+				if (! (call.get("method") instanceof String) || (params != null && ! (params instanceof Map))) {
+					return error(id, INVALID_REQUEST, "Request needs a 'method', and its 'params' (if any) must be an object");
+				}
+				Map<?, ?> args = params == null ? Collections.emptyMap() : (Map<?, ?>)params;
+				
+				Object result;
+				switch ((String)call.get("method")) {
+					case "list":
+						result = list(args);
+						break;
+					case "extract":
+						result = extract(args);
+						break;
+					case "verify":
+						result = verify(args);
+						break;
+					case "patch":
+						result = patch(args);
+						break;
+					case "shutdown":
+						stopped.countDown();
+						result = "ok";
+						break;
+					default:
+						return error(id, METHOD_NOT_FOUND, "Unknown method '" + call.get("method") + "'");
+				}
+				
+				Map<String, Object> response = new LinkedHashMap<>();
+				response.put("jsonrpc", "2.0");
+				response.put("id", id);
+				response.put("result", result);
+				return Json.write(response);
+			}
+			catch (IllegalArgumentException e) {
+				return error(id, INVALID_PARAMS, e.getMessage());
+			}
+			catch (Exception e) {
+				return error(id, SERVER_ERROR, e.getClass().getSimpleName() + ":  " + e.getMessage());
+			}
+		}
+		
+		private static String error(Object id, int code, String message) {
+			Map<String, Object> error = new LinkedHashMap<>();
+			error.put("code", code);
+			error.put("message", message);
+			Map<String, Object> response = new LinkedHashMap<>();
+			response.put("jsonrpc", "2.0");
+			response.put("id", id);
+			response.put("error", error);
+			return Json.write(response);
+		}
+		
+		private static String getString(Map<?, ?> args, String name, boolean required) {
+			Object value = args.get(name);
+			if (value == null && ! required) {
+				return null;
+			}
+			if (! (value instanceof String)) {
+				throw new IllegalArgumentException("Parameter '" + name + "' must be a string");
+			}
+			return (String)value;
+		}
+		
+		private static List<String> getStrings(Map<?, ?> args, String name) {
+			List<String> strings = new ArrayList<>();
+			Object value = args.get(name);
+			if (value == null) {
+				return strings;
+			}
+			if (! (value instanceof List)) {
+				throw new IllegalArgumentException("Parameter '" + name + "' must be an array of strings");
+			}
+			for (Object item : (List<?>)value) {
+				if (! (item instanceof String)) {
+					throw new IllegalArgumentException("Parameter '" + name + "' must be an array of strings");
+				}
+				strings.add((String)item);
+			}
+			return strings;
+		}
+		
+		/**
+		 * Takes the read or write lock of the bundle, waiting for it if necessary.  Must be released with unlock().
+		 */
+		private Lock lock(String key, boolean write) {
+			BundleLock entry;
+			synchronized (locks) {
+				entry = locks.get(key);
+				if (entry == null) {
+					entry = new BundleLock();
+					locks.put(key, entry);
+				}
+				entry.users++;
+			}
+			Lock lock = write ? entry.lock.writeLock() : entry.lock.readLock();
+			lock.lock();
+			return lock;
+		}
+		
+		/**
+		 * Releases a lock taken with lock(), and forgets the bundle's lock once no request is using it.
+		 */
+		private void unlock(String key, Lock lock) {
+			lock.unlock();
+			synchronized (locks) {
+				BundleLock entry = locks.get(key);
+				if (--entry.users == 0) {
+					locks.remove(key);
+				}
+			}
+		}
+		
+		private static String getKey(String path) {
+			return Paths.get(path).toAbsolutePath().normalize().toString();
+		}
+		
+		/**
+		 * Returns the open bundle, reopening it if it has changed since it was opened.  The caller must hold the bundle's 
+		 * read lock while using it, and hand it back with release() when done.
+		 */
+		private WarmBundle acquire(String key, Metrics metrics) throws IOException {
+			File file = new File(key);
+			synchronized (bundles) {
+				WarmBundle bundle = bundles.get(key);
+				if (bundle == null || bundle.size != file.length() || bundle.modifyTime != file.lastModified()) {
+					if (bundle != null) {
+						retire(key);
+					}
+					long size = file.length();
+					long modifyTime = file.lastModified();
+					bundle = new WarmBundle(new BundleReader(key, metrics), size, modifyTime);
+					bundles.put(key, bundle);
+				}
+				bundle.users++;
+				return bundle;
+			}
+		}
+		
+		/**
+		 * Hands back a bundle returned by acquire(), closing it if it has been retired and this was its last user.
+		 */
+		private void release(WarmBundle bundle) throws IOException {
+			synchronized (bundles) {
+				if (--bundle.users > 0 || ! bundle.retired) {
+					return;
+				}
+			}
+			bundle.reader.close();
+		}
+		
+		/**
+		 * Stops handing out the open bundle (if there is one), and closes it unless a request is still using it.
+		 */
+		private void retire(String key) throws IOException {
+			WarmBundle bundle;
+			synchronized (bundles) {
+				bundle = bundles.remove(key);
+				if (bundle == null) {
+					return;
+				}
+				bundle.retired = true;
+				if (bundle.users > 0) {
+					return;
+				}
+			}
+			bundle.reader.close();
+		}
+		
+		private Object list(Map<?, ?> args) throws IOException {
+			String key = getKey(getString(args, "bundle", true));
+			EntryFilter filter = new EntryFilter(getStrings(args, "patterns"), Boolean.TRUE.equals(args.get("regex")));
+			Metrics metrics = new Metrics();		//only patch requests report their metrics
+			
+			List<Object> entries = new ArrayList<>();
+			Lock lock = lock(key, false);
+			WarmBundle bundle = null;
+			try {
+				bundle = acquire(key, metrics);
+				for (BundleFile file : bundle.reader.getFiles()) {
+					if (! filter.matches(file.getFilename())) {
+						continue;
+					}
+					Map<String, Object> entry = new LinkedHashMap<>();
+					entry.put("name", file.getFilename());
+					entry.put("size", file.getUncompressedSize());
+					entry.put("storedSize", file.getCompressedSize());
+					entry.put("offset", file.getOffset());
+					entry.put("compression", Codecs.getName(file.getCompressionAlgo()));
+					entries.add(entry);
+				}
+			}
+			finally {
+				if (bundle != null) {
+					release(bundle);
+				}
+				unlock(key, lock);
+			}
+			return entries;
+		}
+		
+		private Object extract(Map<?, ?> args) throws IOException, InterruptedException, ExecutionException {
+			String key = getKey(getString(args, "bundle", true));
+			Path outputRoot = Paths.get(getString(args, "output", true));
+			Metrics metrics = new Metrics();
+			Extractor extractor = new Extractor(getStrings(args, "patterns"), Boolean.TRUE.equals(args.get("regex")), metrics);
+			
+			Map<String, Object> result = new LinkedHashMap<>();
+			Lock lock = lock(key, false);
+			WarmBundle bundle = null;
+			try {
+				bundle = acquire(key, metrics);
+				int numMatched = 0;
+				for (BundleFile file : bundle.reader.getFiles()) {
+					if (extractor.matches(file.getFilename())) {
+						numMatched++;
+					}
+				}
+				List<String> failures = extractor.extract(bundle.reader, outputRoot);
+				result.put("extracted", numMatched - failures.size());
+				result.put("failures", failures);
+			}
+			finally {
+				if (bundle != null) {
+					release(bundle);
+				}
+				unlock(key, lock);
+				extractor.shutdown();
+			}
+			return result;
+		}
+		
+		private Object verify(Map<?, ?> args) throws IOException, InterruptedException, ExecutionException {
+			String key = getKey(getString(args, "bundle", true));
+			Metrics metrics = new Metrics();
+			Verifier verifier = new Verifier(Hashes.get(getString(args, "hash", false)), metrics);
+			
+			Map<String, Object> result = new LinkedHashMap<>();
+			Lock lock = lock(key, false);
+			WarmBundle bundle = null;
+			try {
+				bundle = acquire(key, metrics);
+				result.put("problems", verifier.verify(bundle.reader));
+			}
+			finally {
+				if (bundle != null) {
+					release(bundle);
+				}
+				unlock(key, lock);
+				verifier.shutdown();
+			}
+			return result;
+		}
+		
+		/**
+		 * Runs a patch exactly as the command line would, holding the write lock of whatever is being written (and the 
+		 * read lock of the input, when it isn't patched in place).
+		 */
+		private Object patch(Map<?, ?> args) throws Exception {
+			String input = getKey(getString(args, "input", true));
+			String output = getString(args, "output", false);
+			List<String> mods = args.get("mods") instanceof String ? Collections.singletonList((String)args.get("mods")) : getStrings(args, "mods");
+			if (mods.isEmpty()) {
+				throw new IllegalArgumentException("Parameter 'mods' must be a string, or an array of strings");
+			}
+			List<String> flags = getStrings(args, "options");
+			String badOption = checkOptions(flags);
+			if (badOption != null) {
+				throw new IllegalArgumentException(badOption);
+			}
+			List<String> params = new ArrayList<>();
+			params.add(input);
+			if (output == null) {
+				flags.add("--in-place");
+			}
+			else {
+				output = getKey(output);
+				params.add(output);
+				if (flags.contains("-r")) {
+					throw new IllegalArgumentException("Option '-r' isn't supported by the server; patch in place instead");
+				}
+			}
+			params.addAll(mods);
+			
+			//locks are always taken in path order, so that two patches can't deadlock
+			String target = output == null ? input : output;
+			Metrics metrics = new Metrics();		//each request has its own, so concurrent requests don't show up in each other's metrics
+			Map<String, Lock> held = new LinkedHashMap<>();
+			TreeMap<String, Boolean> needed = new TreeMap<>();		//path -> whether it's written
+			needed.put(target, true);
+			if (! target.equals(input)) {
+				needed.put(input, false);
+			}
+			try {
+				for (Map.Entry<String, Boolean> path : needed.entrySet()) {
+					held.put(path.getKey(), lock(path.getKey(), path.getValue()));
+				}
+				retire(target);
+				run(params, flags, metrics);
+			}
+			finally {
+				for (Map.Entry<String, Lock> lock : held.entrySet()) {
+					unlock(lock.getKey(), lock.getValue());
+				}
+			}
+			
+			//'--metrics' and '--verbose' apply to this request only; its metrics are returned with the result, unless they're written to a file
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("bundle", target);
+			String metricsPath = getOption(flags, "--metrics");
+			metrics.report(metricsPath == null || metricsPath.isEmpty() ? null : metricsPath, flags.contains("--verbose"));
+			if (metricsPath != null && metricsPath.isEmpty()) {
+				result.put("metrics", Json.parse(metrics.toJson()));
+			}
+			return result;
+		}
+		
+		/**
+		 * Waits for the requests that are still running to finish, and closes every open bundle.
+		 */
+		private void shutdown() throws IOException, InterruptedException {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			synchronized (bundles) {
+				for (WarmBundle bundle : bundles.values()) {
+					bundle.reader.close();
+				}
+				bundles.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Just enough JSON for the server's requests and responses.  Objects are parsed into (ordered) Maps, arrays into 
+	 * Lists, numbers into Longs (or Doubles, if they have a fraction or exponent), and the rest into Strings, Booleans and 
+	 * nulls.  Writing accepts the same types, along with any other Number.
+	 */
+	private static class Json {
+		private final String text;
+		private int position;
+		
+		private Json(String text) {
+			this.text = text;
+		}
+		
+		public static Object parse(String text) {
+			Json parser = new Json(text);
+			Object value = parser.readValue();
+			parser.skipWhitespace();
+			if (parser.position < text.length()) {
+				throw parser.error("Unexpected trailing data");
+			}
+			return value;
+		}
+		
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + position + " of the JSON");
+		}
+		
+		private void skipWhitespace() {
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+		
+		private boolean consume(String token) {
+			if (text.startsWith(token, position)) {
+				position += token.length();
+				return true;
+			}
+			return false;
+		}
+		
+		private Object readValue() {
+			skipWhitespace();
+			if (position >= text.length()) {
+				throw error("Unexpected end");
+			}
+			char c = text.charAt(position);
+			if (c == '{') {
+				position++;
+				Map<String, Object> object = new LinkedHashMap<>();
+				skipWhitespace();
+				if (consume("}")) {
+					return object;
+				}
+				do {
+					skipWhitespace();
+					if (position >= text.length() || text.charAt(position) != '"') {
+						throw error("Expected a string");
+					}
+					String name = readString();
+					skipWhitespace();
+					if (! consume(":")) {
+						throw error("Expected ':'");
+					}
+					object.put(name, readValue());
+					skipWhitespace();
+				} while (consume(","));
+				if (! consume("}")) {
+					throw error("Expected ',' or '}'");
+				}
+				return object;
+			}
+			if (c == '[') {
+				position++;
+				List<Object> array = new ArrayList<>();
+				skipWhitespace();
+				if (consume("]")) {
+					return array;
+				}
+				do {
+					array.add(readValue());
+					skipWhitespace();
+				} while (consume(","));
+				if (! consume("]")) {
+					throw error("Expected ',' or ']'");
+				}
+				return array;
+			}
+			if (c == '"') {
+				return readString();
+			}
+			if (consume("true")) {
+				return Boolean.TRUE;
+			}
+			if (consume("false")) {
+				return Boolean.FALSE;
+			}
+			if (consume("null")) {
+				return null;
+			}
+			
+			int start = position;
+			while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			String number = text.substring(start, position);
+			try {
+				return number.matches("-?\\d+") ? (Object)Long.valueOf(number) : (Object)Double.valueOf(number);
+			}
+			catch (NumberFormatException e) {
+				position = start;
+				throw error("Unexpected character '" + c + "'");
+			}
+		}
+		
+		private String readString() {
+			position++;		//opening quote
+			StringBuilder string = new StringBuilder();
+			while (true) {
+				if (position >= text.length()) {
+					throw error("Unterminated string");
+				}
+				char c = text.charAt(position++);
+				if (c == '"') {
+					return string.toString();
+				}
+				if (c != '\\') {
+					string.append(c);
+					continue;
+				}
+				if (position >= text.length()) {
+					throw error("Unterminated string");
+				}
+				char escape = text.charAt(position++);
+				switch (escape) {
+					case 'b':  string.append('\b');  break;
+					case 'f':  string.append('\f');  break;
+					case 'n':  string.append('\n');  break;
+					case 'r':  string.append('\r');  break;
+					case 't':  string.append('\t');  break;
+					case 'u':
+						if (position + 4 > text.length()) {
+							throw error("Truncated unicode escape");
+						}
+						try {
+							string.append((char)Integer.parseInt(text.substring(position, position + 4), 16));
+						}
+						catch (NumberFormatException e) {
+							throw error("Invalid unicode escape");
+						}
+						position += 4;
+						break;
+					default:
+						string.append(escape);		//'"', '\\' and '/'
+				}
+			}
+		}
+		
+		public static String write(Object value) {
+			StringBuilder json = new StringBuilder();
+			write(value, json);
+			return json.toString();
+		}
+		
+		private static void write(Object value, StringBuilder json) {
+			if (value == null || value instanceof Boolean || value instanceof Number) {
+				json.append(value);
+			}
+			else if (value instanceof Map) {
+				json.append('{');
+				String separator = "";
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+					json.append(separator);
+					write(String.valueOf(entry.getKey()), json);
+					json.append(':');
+					write(entry.getValue(), json);
+					separator = ",";
+				}
+				json.append('}');
+			}
+			else if (value instanceof Collection) {
+				json.append('[');
+				String separator = "";
+				for (Object item : (Collection<?>)value) {
+					json.append(separator);
+					write(item, json);
+					separator = ",";
+				}
+				json.append(']');
+			}
+			else {
+				String string = value.toString();
+				json.append('"');
+				for (int index = 0; index < string.length(); index++) {
+					char c = string.charAt(index);
+					if (c == '"' || c == '\\') {
+						json.append('\\').append(c);
+					}
+					else if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int)c));
+					}
+					else {
+						json.append(c);
+					}
+				}
+				json.append('"');
+			}
+		}
+	}
+	
+	/**
+	 * Searches the contents of bundles for any number of strings or byte patterns at once, without extracting anything.  
+	 * Every bundle is memory-mapped, and its entries are scanned in parallel:  uncompressed entries straight from the 
+	 * mapping, and compressed ones from the pooled buffer they're decoded into by the ParallelDecoder (so only as many 
+	 * entries are held in memory as there are worker threads).  All of the patterns are matched in a single pass over 
+	 * each entry with an Aho-Corasick automaton.
+	 * 
+	 * Matches are reported with the bundle, the entry's name and the offset of the match within the entry's (decoded) 
+	 * content, in descriptor order.
+	 */
+	private static class ContentSearch {
+		private final AhoCorasick matcher;
+		private final List<String> patternNames;
+		private final int maxMatchesPerFile;
+		private final ForkJoinPool pool = new ForkJoinPool();
+		private final ParallelDecoder decoder;
+		private final Metrics metrics;
+		
+		/**
+		 * A match, identified by the index of the entry it's in, its offset within the entry, and the pattern that matched.
+		 */
+		private static class Match implements Comparable<Match> {
+			private final int fileIndex;
+			private final long offset;
+			private final int pattern;
+			
+			public Match(int fileIndex, long offset, int pattern) {
+				this.fileIndex = fileIndex;
+				this.offset = offset;
+				this.pattern = pattern;
+			}
+			
+			@Override
+			public int compareTo(Match other) {
+				return fileIndex != other.fileIndex ? Integer.compare(fileIndex, other.fileIndex) : Long.compare(offset, other.offset);
+			}
+		}
+		
+		/**
+		 * Each pattern is a string, searched for as UTF-8 (and as UTF-16LE too, if 'utf16' is set), or a string of hex 
+		 * digits if 'hex' is set.  With 'ignoreCase', ASCII letters match regardless of case.
+		 */
+		public ContentSearch(List<String> patterns, boolean hex, boolean utf16, boolean ignoreCase, int maxMatchesPerFile, Metrics metrics) {
+			List<byte[]> encoded = new ArrayList<>();
+			this.patternNames = new ArrayList<>();
+			for (String pattern : patterns) {
+				if (hex) {
+					String digits = pattern.replaceAll("\\s", "");
+					if (digits.isEmpty() || digits.length() % 2 != 0 || ! digits.matches("[0-9a-fA-F]+")) {
+						throw new IllegalArgumentException("Not a hex byte string:  " + pattern);
+					}
+					byte[] bytes = new byte[digits.length() / 2];
+					for (int index = 0; index < bytes.length; index++) {
+						bytes[index] = (byte)Integer.parseInt(digits.substring(index * 2, index * 2 + 2), 16);
+					}
+					encoded.add(bytes);
+					patternNames.add(pattern);
+					continue;
+				}
+				
+				if (pattern.isEmpty()) {
+					throw new IllegalArgumentException("Can't search for an empty string");
+				}
+				encoded.add(pattern.getBytes(StandardCharsets.UTF_8));
+				patternNames.add("\"" + pattern + "\"");
+				if (utf16) {
+					encoded.add(pattern.getBytes(StandardCharsets.UTF_16LE));
+					patternNames.add("\"" + pattern + "\" (UTF-16)");
+				}
+			}
+			this.matcher = new AhoCorasick(encoded, ignoreCase);
+			this.maxMatchesPerFile = maxMatchesPerFile;
+			this.decoder = new ParallelDecoder(pool, BufferPool.SHARED, metrics);
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * Searches one bundle, prints its matches, and returns the number of entries that matched.
+		 */
+		public long search(String path) throws IOException, InterruptedException, ExecutionException {
+			try (BundleReader reader = new BundleReader(path, metrics)) {
+				final List<BundleFile> files = reader.getFiles();
+				final Map<BundleFile, Integer> indexes = new IdentityHashMap<>();
+				final Queue<Match> matches = new ConcurrentLinkedQueue<>();
+				List<BundleFile> storedFiles = new ArrayList<>();
+				List<BundleFile> compressedFiles = new ArrayList<>();
+				for (BundleFile file : files) {
+					indexes.put(file, indexes.size());
+					if (file.getCompressionAlgo() == 0 && file.getCompressedSize() == file.getUncompressedSize() && file.getCompressedSize() <= Integer.MAX_VALUE) {
+						storedFiles.add(file);
+					}
+					else {
+						compressedFiles.add(file);
+					}
+				}
+				
+				//uncompressed entries are scanned straight from the mapped bundle; an entry that can't be read is reported on its own, like one that can't be decoded
+				List<String> failures = new ArrayList<>();
+				List<Callable<Void>> scans = new ArrayList<>();
+				for (final BundleFile file : storedFiles) {
+					scans.add(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							scan(reader.getRawData(file), indexes.get(file), matches);
+							return null;
+						}
+					});
+				}
+				List<Future<Void>> results = pool.invokeAll(scans);
+				for (int index = 0; index < results.size(); index++) {
+					try {
+						results.get(index).get();
+					}
+					catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						while (cause.getCause() != null) {
+							cause = cause.getCause();		//the pool wraps checked exceptions
+						}
+						failures.add(storedFiles.get(index).getFilename() + ":  " + cause.getMessage());
+					}
+				}
+				
+				//everything else is decoded in parallel, and scanned in the decode buffer
+				failures.addAll(decoder.decodeAll(reader, compressedFiles, new ParallelDecoder.EntryHandler() {
+					@Override
+					public void handle(BundleFile file, byte[] data, int length) {
+						scan(ByteBuffer.wrap(data, 0, length), indexes.get(file), matches);
+					}
+				}));
+				
+				for (String failure : failures) {
+					System.out.println("WARN:  Failed to search " + failure);
+				}
+				
+				List<Match> sortedMatches = new ArrayList<>(matches);
+				Collections.sort(sortedMatches);
+				int shown = 0;
+				int lastFile = -1;
+				int matchingFiles = 0;
+				for (Match match : sortedMatches) {
+					if (match.fileIndex != lastFile) {
+						matchingFiles++;
+					}
+					shown = match.fileIndex == lastFile ? shown + 1 : 1;
+					lastFile = match.fileIndex;
+					if (shown <= maxMatchesPerFile) {
+						System.out.println(path + ":  " + files.get(match.fileIndex).getFilename() + " @ " + match.offset + ":  " + patternNames.get(match.pattern));
+					}
+					else if (shown == maxMatchesPerFile + 1) {
+						System.out.println(path + ":  " + files.get(match.fileIndex).getFilename() + ":  (more matches not shown)");
+					}
+				}
+				return matchingFiles;
+			}
+		}
+		
+		private void scan(ByteBuffer data, int fileIndex, Queue<Match> matches) {
+			List<long[]> found = matcher.findAll(data, maxMatchesPerFile + 1);
+			for (long[] match : found) {
+				matches.add(new Match(fileIndex, match[0], (int)match[1]));
+			}
+		}
+		
+		public void shutdown() {
+			decoder.shutdown();
+		}
+	}
+	
+	/**
+	 * Aho-Corasick multi-pattern matcher over bytes.  The trie of the patterns is compiled into a full transition table 
+	 * (a row of 256 next states per state, with the failure links already folded in), so scanning costs a single table 
+	 * lookup per input byte, however many patterns there are.
+	 */
+	private static class AhoCorasick {
+		private final int[][] next;
+		private final int[][] outputs;		//per state, the patterns that end there (including via failure links), or null
+		private final int[] lengths;
+		private final boolean ignoreCase;
+		
+		public AhoCorasick(List<byte[]> patterns, boolean ignoreCase) {
+			this.ignoreCase = ignoreCase;
+			this.lengths = new int[patterns.size()];
+			
+			//build the trie
+			List<int[]> trie = new ArrayList<>();
+			List<List<Integer>> ends = new ArrayList<>();
+			trie.add(newState());
+			ends.add(new ArrayList<Integer>());
+			for (int index = 0; index < patterns.size(); index++) {
+				byte[] pattern = patterns.get(index);
+				lengths[index] = pattern.length;
+				int state = 0;
+				for (byte b : pattern) {
+					int symbol = fold(b & 0xFF);
+					if (trie.get(state)[symbol] < 0) {
+						trie.get(state)[symbol] = trie.size();
+						trie.add(newState());
+						ends.add(new ArrayList<Integer>());
+					}
+					state = trie.get(state)[symbol];
+				}
+				ends.get(state).add(index);
+			}
+			
+			//breadth-first, fill in the missing transitions from each state's failure state, and inherit its outputs
+			next = trie.toArray(new int[trie.size()][]);
+			int[] failure = new int[next.length];
+			ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for (int symbol = 0; symbol < 256; symbol++) {
+				if (next[0][symbol] < 0) {
+					next[0][symbol] = 0;
+				}
+				else {
+					failure[next[0][symbol]] = 0;
+					queue.add(next[0][symbol]);
+				}
+			}
+			while (! queue.isEmpty()) {
+				int state = queue.poll();
+				ends.get(state).addAll(ends.get(failure[state]));
+				for (int symbol = 0; symbol < 256; symbol++) {
+					int child = next[state][symbol];
+					if (child < 0) {
+						next[state][symbol] = next[failure[state]][symbol];
+					}
+					else {
+						failure[child] = next[failure[state]][symbol];
+						queue.add(child);
+					}
+				}
+			}
+			
+			outputs = new int[next.length][];
+			for (int state = 0; state < next.length; state++) {
+				if (! ends.get(state).isEmpty()) {
+					outputs[state] = new int[ends.get(state).size()];
+					for (int index = 0; index < outputs[state].length; index++) {
+						outputs[state][index] = ends.get(state).get(index);
+					}
+				}
+			}
+			
+			//with case folding, both cases of a letter lead to the same place
+			if (ignoreCase) {
+				for (int[] row : next) {
+					for (int symbol = 'A'; symbol <= 'Z'; symbol++) {
+						row[symbol] = row[symbol + ('a' - 'A')];
+					}
+				}
+			}
+		}
+		
+		private static int[] newState() {
+			int[] state = new int[256];
+			Arrays.fill(state, -1);
+			return state;
+		}
+		
+		private int fold(int symbol) {
+			return ignoreCase && symbol >= 'A' && symbol <= 'Z' ? symbol + ('a' - 'A') : symbol;
+		}
+		
+		/**
+		 * Finds the matches in the remaining bytes of 'data' (without moving its position), up to 'limit' of them, and 
+		 * returns them as {offset, pattern} pairs, where the offset is relative to the position.
+		 */
+		public List<long[]> findAll(ByteBuffer data, int limit) {
+			List<long[]> matches = new ArrayList<>();
+			int start = data.position();
+			int end = data.limit();
+			int state = 0;
+			if (data.hasArray()) {
+				byte[] array = data.array();
+				int base = data.arrayOffset();
+				for (int position = start; position < end; position++) {
+					state = next[state][array[base + position] & 0xFF];
+					if (outputs[state] != null && addMatches(matches, state, position - start, limit)) {
+						break;
+					}
+				}
+			}
+			else {
+				for (int position = start; position < end; position++) {
+					state = next[state][data.get(position) & 0xFF];
+					if (outputs[state] != null && addMatches(matches, state, position - start, limit)) {
+						break;
+					}
+				}
+			}
+			return matches;
+		}
+		
+		/**
+		 * Records the matches ending at 'position', and returns true once there are 'limit' of them.
+		 */
+		private boolean addMatches(List<long[]> matches, int state, int position, int limit) {
+			for (int pattern : outputs[state]) {
+				matches.add(new long[] {position - lengths[pattern] + 1, pattern});
+				if (matches.size() >= limit) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * A persistent index of a bundle's descriptor table, stored next to the bundle as '<bundle>.bxidx'.  The index records 
+	 * the size and modification time of the bundle it was built from, and is rebuilt automatically when either of them 
+	 * changes.
+	 * 
+	 * Entries are sorted by name (compared case-insensitively, the same way mod files are matched against bundle entries), 
+	 * all of the names are packed into a single string table, and the offsets, sizes and compression algos are held in 
+	 * fixed-width columns.  The index file is memory-mapped and used as-is, so a lookup is a binary search that doesn't 
+	 * allocate anything or touch the bundle itself.
+	 * 
+	 * Layout (little-endian):  magic[8], bundleSize[8], bundleModifyTime[8], entryCount[4], stringTableSize[4], followed by 
+	 * the columns offset[8 * n], uncompressedSize[8 * n], compressedSize[8 * n], nameOffset[4 * (n + 1)], 
+	 * compressionAlgo[4 * n], descriptorIndex[4 * n], and then the string table.
+	 */
+	private static class BundleIndex {
+		public static final String EXTENSION = ".bxidx";
+		private static final byte[] INDEX_MAGIC = "BXIDX001".getBytes(StandardCharsets.ISO_8859_1);
+		private static final int INDEX_HEADER_SIZE = 32;
+		
+		private final ByteBuffer data;
+		private final boolean rebuilt;
+		private final int count;
+		private final int uncompressedPos;
+		private final int compressedPos;
+		private final int namePos;
+		private final int algoPos;
+		private final int descriptorPos;
+		private final int stringsPos;
+		
+		private BundleIndex(ByteBuffer data, boolean rebuilt) throws IOException {
+			this.data = data;
+			this.rebuilt = rebuilt;
+			this.count = data.getInt(24);
+			long stringTableSize = data.getInt(28) & 0xFFFFFFFFL;
+			
+			//all of the column positions follow from the entry count
+			this.uncompressedPos = INDEX_HEADER_SIZE + 8 * count;
+			this.compressedPos = uncompressedPos + 8 * count;
+			this.namePos = compressedPos + 8 * count;
+			this.algoPos = namePos + 4 * (count + 1);
+			this.descriptorPos = algoPos + 4 * count;
+			this.stringsPos = descriptorPos + 4 * count;
+			if (count < 0 || count > (Integer.MAX_VALUE - INDEX_HEADER_SIZE) / 36 || stringsPos + stringTableSize != data.capacity()) {
+				throw new IOException("Index file is damaged (unexpected size)");
+			}
+		}
+		
+		/**
+		 * Opens the index for the given bundle, (re)building it first if it is missing or out of date.  If the index 
+		 * can't be saved next to the bundle, the freshly built index is still returned, but will have to be rebuilt next time.
+		 */
+		public static BundleIndex open(String bundlePath, Metrics metrics) throws IOException {
+			Path bundle = Paths.get(bundlePath);
+			long bundleSize = Files.size(bundle);
+			long modifyTime = Files.getLastModifiedTime(bundle).toMillis();
+			
+			Path indexPath = Paths.get(bundlePath + EXTENSION);
+			if (Files.isRegularFile(indexPath)) {
+				try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+					long size = channel.size();
+					if (size >= INDEX_HEADER_SIZE && size <= Integer.MAX_VALUE) {
+						ByteBuffer data = channel.map(MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);		//XXX:  the mapping stays valid after the channel is closed
+						if (isCurrent(data, bundleSize, modifyTime)) {
+							return new BundleIndex(data, false);
+						}
+					}
+				}
+				catch (IOException e) {
+					System.out.println("WARN:  Ignoring unreadable index '" + indexPath + "':  " + e.getMessage());
+				}
+			}
+			
+			ByteBuffer data = build(bundlePath, bundleSize, modifyTime, metrics);
+			try {
+				Path temp = Paths.get(indexPath + ".tmp");
+				try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					IOUtils.writeFully(channel, data.duplicate(), metrics);
+				}
+				Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (IOException e) {
+				System.out.println("WARN:  Unable to save index '" + indexPath + "':  " + e.getMessage());
+			}
+			return new BundleIndex(data, true);
+		}
+		
+		private static boolean isCurrent(ByteBuffer data, long bundleSize, long modifyTime) {
+			for (int i = 0; i < INDEX_MAGIC.length; i++) {
+				if (data.get(i) != INDEX_MAGIC[i]) {
+					return false;
+				}
+			}
+			return data.getLong(8) == bundleSize && data.getLong(16) == modifyTime;
+		}
+		
+		private static ByteBuffer build(String bundlePath, long bundleSize, long modifyTime, Metrics metrics) throws IOException {
+			List<BundleFile> files;
+			try (BundleReader reader = new BundleReader(bundlePath, metrics)) {
+				files = reader.getFiles();
+			}
+			
+			//sort the entries by name, keeping track of where each one came from in the descriptor table
+			final byte[][] names = new byte[files.size()][];
+			Integer[] order = new Integer[files.size()];
+			long stringTableSize = 0;
+			for (int i = 0; i < names.length; i++) {
+				names[i] = files.get(i).getFilename().getBytes(StandardCharsets.ISO_8859_1);
+				order[i] = i;
+				stringTableSize += names[i].length;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer left, Integer right) {
+					byte[] a = names[left];
+					byte[] b = names[right];
+					for (int i = 0; i < a.length && i < b.length; i++) {
+						int diff = fold(a[i] & 0xFF) - fold(b[i] & 0xFF);
+						if (diff != 0) {
+							return diff;
+						}
+					}
+					return a.length - b.length;
+				}
+			});
+			
+			int count = names.length;
+			int size = IOUtils.toArraySize(INDEX_HEADER_SIZE + 36L * count + 4 + stringTableSize, "index size");
+			ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+			data.put(INDEX_MAGIC);
+			data.putLong(bundleSize);
+			data.putLong(modifyTime);
+			data.putInt(count);
+			data.putInt((int)stringTableSize);
+			for (Integer i : order) {
+				data.putLong(files.get(i).getSourceOffset());
+			}
+			for (Integer i : order) {
+				data.putLong(files.get(i).getUncompressedSize());
+			}
+			for (Integer i : order) {
+				data.putLong(files.get(i).getCompressedSize());
+			}
+			int nameOffset = 0;
+			for (Integer i : order) {
+				data.putInt(nameOffset);
+				nameOffset += names[i].length;
+			}
+			data.putInt(nameOffset);
+			for (Integer i : order) {
+				data.putInt(files.get(i).getCompressionAlgo());
+			}
+			for (Integer i : order) {
+				data.putInt(i);
+			}
+			for (Integer i : order) {
+				data.put(names[i]);
+			}
+			data.flip();
+			return data;
+		}
+		
+		/**
+		 * Folds a name character for comparison; ASCII letters are compared case-insensitively, and '/' matches '\'.
+		 */
+		private static int fold(int c) {
+			if (c >= 'A' && c <= 'Z') {
+				return c + ('a' - 'A');
+			}
+			return c == '/' ? '\\' : c;
+		}
+		
+		/**
+		 * Compares the indexed name at 'entry' against 'name', returning a negative number, zero, or a positive number 
+		 * if the indexed name sorts before, the same as, or after it.
+		 */
+		private int compareName(int entry, String name) {
+			int start = stringsPos + data.getInt(namePos + 4 * entry);
+			int length = stringsPos + data.getInt(namePos + 4 * (entry + 1)) - start;
+			for (int i = 0; i < length && i < name.length(); i++) {
+				int diff = fold(data.get(start + i) & 0xFF) - fold(name.charAt(i));
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return length - name.length();
+		}
+		
+		/**
+		 * Returns the position of the first entry with the given name, or -1 if the bundle does not contain it.
+		 */
+		public int find(String name) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compareName(mid, name) < 0) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low < count && compareName(low, name) == 0 ? low : -1;
+		}
+		
+		/**
+		 * Returns the position of the next entry with the same name as 'entry', or -1 if there isn't one.
+		 */
+		public int next(int entry) {
+			return entry + 1 < count && compareName(entry + 1, getName(entry)) == 0 ? entry + 1 : -1;
+		}
+		
+		public boolean wasRebuilt() {
+			return rebuilt;
+		}
+		
+		public int size() {
+			return count;
+		}
+		
+		public String getName(int entry) {
+			int start = stringsPos + data.getInt(namePos + 4 * entry);
+			int end = stringsPos + data.getInt(namePos + 4 * (entry + 1));
+			byte[] name = new byte[end - start];
+			ByteBuffer view = data.duplicate();
+			view.position(start);
+			view.get(name);
+			return new String(name, StandardCharsets.ISO_8859_1);
+		}
+		
+		public long getOffset(int entry) {
+			return data.getLong(INDEX_HEADER_SIZE + 8 * entry);
+		}
+		
+		public long getUncompressedSize(int entry) {
+			return data.getLong(uncompressedPos + 8 * entry);
+		}
+		
+		public long getCompressedSize(int entry) {
+			return data.getLong(compressedPos + 8 * entry);
+		}
+		
+		public int getCompressionAlgo(int entry) {
+			return data.getInt(algoPos + 4 * entry);
+		}
+		
+		/**
+		 * Returns the position of the entry within the bundle's descriptor table.
+		 */
+		public int getDescriptorIndex(int entry) {
+			return data.getInt(descriptorPos + 4 * entry);
+		}
+	}
+	
+	/**
+	 * Lays out the file data of a bundle that is about to be written.  Every entry's data has to start on an 
+	 * ALIGNMENT_TARGET boundary, so entries are packed back to back in their original order (added entries go last), each 
+	 * starting at the first aligned position after the one before it.  Gaps in the input's layout (left by entries that 
+	 * were removed or shrunk) are closed up, entries that shared their data in the input keep sharing a single copy, and 
+	 * since the final entry doesn't need any padding after it, the entry that would waste the most padding is moved to the 
+	 * end.
+	 */
+	private static class LayoutPlanner {
+		private final long dataStart;
+		private long endPosition;
+		private long paddingBytes;
+		private List<List<BundleFile>> inputOrder;		//the blocks in their original order
+		private int numEntries;
+		private int numBlocks;
+		private int numSharedBlocks;
+		private long sharedBytes;
+		
+		public LayoutPlanner(long dataStart) {
+			this.dataStart = dataStart;
+		}
+		
+		/**
+		 * Assigns an offset to each of the given files, and returns them in the order their data should be written.
+		 */
+		public List<BundleFile> plan(List<BundleFile> files) {
+			List<BundleFile> layout = new ArrayList<>(files.size());
+			for (List<BundleFile> block : group(files, Collections.<BundleFile>emptySet())) {
+				place(block);
+				layout.addAll(block);
+			}
+			return layout;
+		}
+		
+		/**
+		 * Works out the order of the data, without assigning any offsets yet.  Returns the blocks of data to be written, in 
+		 * order, where each block is the list of entries that share that data.  Entries in 'pending' are about to have 
+		 * their data replaced, so they never share it with anything.
+		 */
+		public List<List<BundleFile>> group(List<BundleFile> files, Set<BundleFile> pending) {
+			List<BundleFile> sortedFiles = new ArrayList<>(files);
+			Collections.sort(sortedFiles, new Comparator<BundleFile>() {
+				@Override
+				public int compare(BundleFile left, BundleFile right) {
+					//added entries have no source offset, and keep the order they were added in
+					if (left.isAdded() || right.isAdded()) {
+						return Boolean.compare(left.isAdded(), right.isAdded());
+					}
+					return Long.compare(left.getSourceOffset(), right.getSourceOffset());
+				}
+			});
+			
+			//group the entries that share their data with each other
+			List<List<BundleFile>> blocks = new ArrayList<>();
+			Map<Long, List<BundleFile>> unmodifiedBlocks = new HashMap<>();		//keyed by source offset
+			for (BundleFile file : sortedFiles) {
+				boolean unmodified = file.getData() == null && ! file.isAdded() && ! pending.contains(file);
+				List<BundleFile> shared = unmodified ? unmodifiedBlocks.get(file.getSourceOffset()) : null;
+				if (shared != null && shared.get(0).getSourceSize() == file.getSourceSize()) {
+					shared.add(file);
+					continue;
+				}
+				
+				List<BundleFile> block = new ArrayList<>();
+				block.add(file);
+				blocks.add(block);
+				if (unmodified) {
+					unmodifiedBlocks.put(file.getSourceOffset(), block);
+				}
+			}
+			inputOrder = new ArrayList<>(blocks);
+			
+			//only the last block goes without padding, so put the one that needs the most padding there
+			int last = -1;
+			long mostPadding = -1;
+			for (int index = 0; index < blocks.size(); index++) {
+				long size = blocks.get(index).get(0).getCompressedSize();
+				if (alignUp(size) - size > mostPadding) {
+					mostPadding = alignUp(size) - size;
+					last = index;
+				}
+			}
+			if (last >= 0) {
+				blocks.add(blocks.remove(last));
+			}
+			
+			endPosition = dataStart;
+			numEntries = files.size();
+			numBlocks = blocks.size();
+			return blocks;
+		}
+		
+		/**
+		 * Assigns the next offset to a block of entries (in the order returned by 'group()'), once the size of its data 
+		 * is final, and returns the offset.
+		 */
+		public long place(List<BundleFile> block) {
+			long offset = alignUp(endPosition);
+			paddingBytes += offset - endPosition;
+			for (BundleFile file : block) {
+				file.setOffset(offset);
+			}
+			endPosition = offset + block.get(0).getCompressedSize();
+			return offset;
+		}
+		
+		/**
+		 * Points a block of entries at identical data that has already been placed at 'offset', instead of giving it 
+		 * space of its own.
+		 */
+		public void share(List<BundleFile> block, long offset) {
+			for (BundleFile file : block) {
+				file.setOffset(offset);
+			}
+			numSharedBlocks++;
+			sharedBytes += block.get(0).getCompressedSize();
+		}
+		
+		/**
+		 * The position just past the end of the last entry's data; i.e. the size of the bundle, excluding any footer.
+		 */
+		public long getEndPosition() {
+			return endPosition;
+		}
+		
+		public String getReport() {
+			//work out where the data would have ended if the input's offsets had been kept wherever possible
+			long inputLayoutEnd = dataStart;
+			for (List<BundleFile> block : inputOrder) {
+				BundleFile file = block.get(0);
+				inputLayoutEnd = (! file.isAdded() && file.getSourceOffset() >= inputLayoutEnd ? file.getSourceOffset() : alignUp(inputLayoutEnd)) + file.getCompressedSize();
+			}
+			
+			return "Laid out " + numEntries + " files in " + (numBlocks - numSharedBlocks) + " data blocks; size=" + endPosition + ", alignmentPadding=" + paddingBytes + 
+					(numSharedBlocks > 0 ? ", deduplicated " + numSharedBlocks + " blocks holding " + sharedBytes + " bytes" : "") + 
+					", saved " + (inputLayoutEnd - endPosition) + " bytes compared to keeping the input layout.";
+		}
+	}
+	
+	/**
+	 * Writes a bundle file.  Overridden entries are written from memory, while everything else is moved directly from 
+	 * the input bundle to the output using FileChannel.transferTo (which lets the OS copy the data without it ever 
+	 * passing through the Java heap).
+	 */
+	private static class BundleWriter {
+		private static final int DESCRIPTOR_BUFFER_SIZE = 64 * 1024;
+		
+		private final BundleReader reader;
+		private final Metrics metrics;
+		
+		public BundleWriter(BundleReader reader, Metrics metrics) {
+			this.reader = reader;
+			this.metrics = metrics;
+		}
+		
+		public void write(String output, List<BundleFile> bundleFiles) throws IOException {
+			//the descriptor table grows or shrinks with the number of entries, if any have been added or removed
+			long writePosition = HEADER_SIZE;
+			for (BundleFile file : bundleFiles) {
+				writePosition += file.getHeaderEntrySize();
+			}
+			
+			long dataOffset = writePosition - HEADER_SIZE;
+			if (dataOffset != reader.getDataOffset()) {
+				System.out.println("Descriptor table resized from " + reader.getDataOffset() + " to " + dataOffset + " bytes (" + bundleFiles.size() + " files).");
+			}
+			
+			//now lay out the file data, and take note of the total number of bytes needed (including any padding bytes needed to ensure proper alignment of data)
+			LayoutPlanner layout = new LayoutPlanner(writePosition);
+			List<BundleFile> sortedFiles = layout.plan(bundleFiles);
+			writePosition = layout.getEndPosition();
+			System.out.println(layout.getReport());
+			
+			//don't forget the footer bytes (if necessary; we need to end on an even multiple of 16 bytes) [this seems to be optional as far as the game is concerned; some bundles do this, others do not]
+			int neededFooterBytes = 16;		//XXX:  this disables the extra footer bytes (game doesn't strictly require them, so why bother?)
+			//int neededFooterBytes = 16 - (writePosition % 16);
+			if (neededFooterBytes < 16) {
+				writePosition += neededFooterBytes;
+			}
+			
+			try (FileOutputStream outFile = new FileOutputStream(output)) {
+				FileChannel out = outFile.getChannel();
+				writePosition = writeHeader(out, reader.getOtherSize(), reader.getOtherHeaderData(), writePosition, bundleFiles, metrics);
+				out.position(writePosition);
+				
+				//write the file data
+				for (BundleFile file : sortedFiles) {
+					if (file.getOffset() < writePosition) {
+						continue;		//shares its data with an entry that has already been written
+					}
+					
+					//use of 'prelimanary padding' data appears to be optional as far as the game cares, so it's not written; alignment gaps are just filled with 0's
+					IOUtils.writePadding(out, file.getOffset() - writePosition, metrics);
+					writePosition = file.getOffset();
+					
+					if (file.getData() != null) {
+						IOUtils.writeFully(out, ByteBuffer.wrap(file.getData()), metrics);
+					}
+					else {
+						IOUtils.transferFully(reader.getChannel(), file.getSourceOffset(), file.getCompressedSize(), out, metrics);
+					}
+					writePosition += file.getCompressedSize();
+				}
+				
+				//write the final footer data, if needed
+				if (neededFooterBytes < 16) {
+					IOUtils.writeFully(out, ByteBuffer.wrap(FOOTER_DATA.substring(0, neededFooterBytes).getBytes(StandardCharsets.ISO_8859_1)), metrics);
+				}
+			}
+		}
+		
+		/**
+		 * Writes the file header and the file header entries at the start of 'out', and returns the position just past 
+		 * the last descriptor.  Records are built in a buffer and flushed to the channel in bulk.
+		 */
+		public static long writeHeader(FileChannel out, int otherSize, byte[] otherHeaderData, long totalSize, List<BundleFile> bundleFiles, Metrics metrics) throws IOException {
+			ByteBuffer headerOut = ByteBuffer.allocateDirect(DESCRIPTOR_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			headerOut.put(MAGIC);
+			IOUtils.putUInt32(headerOut, totalSize, "bundle size");
+			headerOut.putInt(otherSize);			//XXX:  does this need to be recomputed?  If so, how???		[seems to work without recomputing]
+			IOUtils.putUInt32(headerOut, (long)bundleFiles.size() * BundleFile.DESCRIPTOR_SIZE, "descriptor table size");
+			headerOut.put(otherHeaderData);		//XXX:  does this need to be recomputed?  If so, how???		[seems to work without recomputing]
+			
+			long writePosition = 0;
+			for (BundleFile file : bundleFiles) {
+				if (headerOut.remaining() < BundleFile.DESCRIPTOR_SIZE) {
+					headerOut.flip();
+					writePosition += headerOut.remaining();
+					IOUtils.writeFully(out, headerOut, writePosition - headerOut.remaining(), metrics);
+					headerOut.clear();
+				}
+				file.writeFileHeader(headerOut);
+			}
+			headerOut.flip();
+			writePosition += headerOut.remaining();
+			IOUtils.writeFully(out, headerOut, writePosition - headerOut.remaining(), metrics);
+			return writePosition;
+		}
+	}
+	
+	/**
+	 * A content-addressed index of the entry payloads written to a bundle, so that byte-identical payloads only need to 
+	 * be stored once; the bundle format addresses data by absolute offset, so any number of descriptors can point at the 
+	 * same copy.  Payloads are keyed by an xxHash64 of their stored bytes, and a payload is only considered a duplicate 
+	 * if its compression algo and sizes match too and its bytes compare equal to the copy that was written, so a hash 
+	 * collision can never merge two different payloads.
+	 */
+	private static class PayloadIndex {
+		private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+		
+		private final Map<Long, List<BundleFile>> payloads = new HashMap<>();		//keyed by hash; each entry's offset is where its copy was written
+		
+		/**
+		 * Returns the offset at which a payload identical to 'payload' (the stored data of 'file') was written to 'written', 
+		 * or -1 if there isn't one.
+		 */
+		public long find(long hash, ByteBuffer payload, BundleFile file, FileChannel written) throws IOException {
+			List<BundleFile> candidates = payloads.get(hash);
+			if (candidates == null) {
+				return -1;
+			}
+			for (BundleFile candidate : candidates) {
+				if (candidate.getCompressionAlgo() == file.getCompressionAlgo() && candidate.getUncompressedSize() == file.getUncompressedSize() 
+						&& candidate.getCompressedSize() == payload.remaining() && contentEquals(written, candidate.getOffset(), payload)) {
+					return candidate.getOffset();
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * Records that the payload of 'file', with the given hash, has been written (at the file's offset).
+		 */
+		public void add(long hash, BundleFile file) {
+			List<BundleFile> candidates = payloads.get(hash);
+			if (candidates == null) {
+				candidates = new ArrayList<>(1);
+				payloads.put(hash, candidates);
+			}
+			candidates.add(file);
+		}
+		
+		private static boolean contentEquals(FileChannel channel, long position, ByteBuffer payload) throws IOException {
+			ByteBuffer expected = payload.duplicate();
+			ByteBuffer actual = ByteBuffer.allocate(Math.min(COMPARE_BUFFER_SIZE, Math.max(1, expected.remaining())));
+			while (expected.hasRemaining()) {
+				actual.clear();
+				actual.limit(Math.min(actual.capacity(), expected.remaining()));
+				while (actual.hasRemaining()) {
+					if (channel.read(actual, position + actual.position()) < 0) {
+						return false;
+					}
+				}
+				actual.flip();
+				ByteBuffer chunk = expected.duplicate();
+				chunk.limit(chunk.position() + actual.remaining());
+				if (! chunk.equals(actual)) {
+					return false;
+				}
+				position += actual.remaining();
+				expected.position(chunk.limit());
+			}
+			return true;
+		}
+		
+		/**
+		 * Reports how much space could be saved by deduplicating the payloads of the given bundles, both within each 
+		 * bundle and across all of them.  Payloads are compared by hash and size only, since this is just an estimate.  
+		 * Only duplicates within a bundle can actually be shared, since every bundle is a separate file.
+		 */
+		public static void reportDuplicates(List<Path> bundles, Metrics metrics) throws IOException {
+			long startTime = System.nanoTime();
+			Map<String, Set<String>> bundlesByPayload = new HashMap<>();		//"hash:size" -> the bundles holding that payload
+			Map<String, Long> payloadSizes = new HashMap<>();
+			long totalBytes = 0;
+			long totalSaveable = 0;
+			for (Path bundle : bundles) {
+				Set<String> seen = new HashSet<>();
+				Set<Long> seenOffsets = new HashSet<>();
+				int numDuplicates = 0;
+				long saveableBytes = 0;
+				try (BundleReader reader = new BundleReader(bundle.toString(), metrics)) {
+					for (BundleFile file : reader.getFiles()) {
+						if (! seenOffsets.add(file.getSourceOffset()) || file.getCompressedSize() > Integer.MAX_VALUE) {
+							continue;		//already shares its data with another entry (or is too large to hash)
+						}
+						String key = Long.toHexString(XxHash64.hash(reader.getRawData(file), 0)) + ":" + file.getCompressionAlgo() + ":" + file.getCompressedSize();
+						totalBytes += file.getCompressedSize();
+						if (! seen.add(key)) {
+							numDuplicates++;
+							saveableBytes += file.getCompressedSize();
+							continue;
+						}
+						
+						Set<String> holders = bundlesByPayload.get(key);
+						if (holders == null) {
+							holders = new HashSet<>();
+							bundlesByPayload.put(key, holders);
+							payloadSizes.put(key, file.getCompressedSize());
+						}
+						holders.add(bundle.toString());
+					}
+				}
+				totalSaveable += saveableBytes;
+				if (numDuplicates > 0) {
+					System.out.println("'" + bundle + "' holds " + numDuplicates + " duplicate payloads; deduplicating it would save " + saveableBytes + " bytes.");
+				}
+			}
+			
+			int numShared = 0;
+			long sharedBytes = 0;
+			for (Map.Entry<String, Set<String>> payload : bundlesByPayload.entrySet()) {
+				if (payload.getValue().size() > 1) {
+					numShared++;
+					sharedBytes += (payload.getValue().size() - 1) * payloadSizes.get(payload.getKey());
+				}
+			}
+			System.out.println("Scanned " + bundles.size() + " bundles (" + totalBytes + " bytes of file data) in " + ((System.nanoTime() - startTime) / 1000000) + "ms; " 
+					+ totalSaveable + " bytes are duplicated within bundles (and can be saved with '--dedup'), and " + numShared + " payloads (" + sharedBytes + " bytes) are duplicated across bundles.");
+		}
+	}
+	
+	/**
+	 * Writes a new bundle as a pipeline, rather than loading every modded file up front and only then writing everything 
+	 * out.  A reader thread walks the entries in layout order and loads the modded files, the (optional) CompressionStage 
+	 * compresses them on its worker pool, and the calling thread writes each entry as soon as it, and everything before 
+	 * it, is ready.  The stages are connected by a bounded queue, and the modded data that has been loaded but not yet 
+	 * written is capped at the window size, so the reader waits whenever the writer falls behind.  Memory use therefore 
+	 * depends on the window, not on the size of the mod, and reading, compressing and writing all overlap.
+	 * 
+	 * Entry sizes aren't final until the data has been loaded (and compressed), so offsets are assigned as the data is 
+	 * written, and the header and file descriptors are written last.
+	 */
+	private static class PatchPipeline {
+		public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+		private static final int QUEUE_LENGTH = 1024;
+		private static final int WINDOW_UNIT = 1024;		//the window is counted in KB, so that it fits in a Semaphore
+		
+		private final BundleReader reader;
+		private final CompressionStage compressor;
+		private final EntryHasher hasher;
+		private final boolean dedup;
+		private final boolean verbose;
+		private final int windowPermits;
+		private final Semaphore window;
+		private final AtomicLong bufferedBytes = new AtomicLong();
+		private final AtomicLong peakBufferedBytes = new AtomicLong();
+		private final Metrics metrics;
+		
+		/**
+		 * An entry on its way to the writer; or, if 'failure' is set, the reason that the reader stage gave up.
+		 */
+		private static class Item {
+			private final BundleFile file;
+			private final Future<Boolean> encoded;		//completes once the entry has been compressed, if it's being compressed
+			private final int permits;
+			private final Throwable failure;
+			
+			public Item(BundleFile file, Future<Boolean> encoded, int permits, Throwable failure) {
+				this.file = file;
+				this.encoded = encoded;
+				this.permits = permits;
+				this.failure = failure;
+			}
+		}
+		
+		public PatchPipeline(BundleReader reader, CompressionStage compressor, EntryHasher hasher, long windowSize, boolean dedup, boolean verbose, Metrics metrics) {
+			this.reader = reader;
+			this.compressor = compressor;
+			this.hasher = hasher;
+			this.dedup = dedup;
+			this.verbose = verbose;
+			this.windowPermits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, windowSize / WINDOW_UNIT));
+			this.window = new Semaphore(windowPermits);
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * Writes 'bundleFiles' to 'output', replacing the data of each entry in 'overrides' with the content of its mod 
+		 * file, and recording a fingerprint of each mod file in 'manifest' (if there is one).
+		 */
+		public void write(String output, final List<BundleFile> bundleFiles, final Map<BundleFile, File> overrides, final BuildManifest manifest) throws IOException, InterruptedException {
+			long startTime = System.nanoTime();
+			long dataStart = HEADER_SIZE + (long)bundleFiles.size() * BundleFile.DESCRIPTOR_SIZE;
+			if (dataStart != HEADER_SIZE + reader.getDataOffset()) {
+				System.out.println("Descriptor table resized from " + reader.getDataOffset() + " to " + (dataStart - HEADER_SIZE) + " bytes (" + bundleFiles.size() + " files).");
+			}
+			
+			LayoutPlanner layout = new LayoutPlanner(dataStart);
+			final List<List<BundleFile>> blocks = layout.group(bundleFiles, overrides.keySet());
+			final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+			Thread readerStage = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					read(blocks, bundleFiles, overrides, manifest, queue);
+				}
+			}, "bundle-reader");
+			readerStage.setDaemon(true);
+			readerStage.start();
+			
+			long modBytes = 0;
+			long storedBytes = 0;
+			PayloadIndex payloads = dedup ? new PayloadIndex() : null;
+			try (FileChannel out = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				out.position(dataStart);
+				long writePosition = dataStart;
+				for (List<BundleFile> block : blocks) {
+					//wait for every entry of the block to come through the pipeline; only the first one's data is written
+					List<Item> items = new ArrayList<>(block.size());
+					for (int index = 0; index < block.size(); index++) {
+						Item item = queue.take();
+						if (item.failure != null) {
+							throw new IOException("Failed to load modded files, detailed error message follows", item.failure);
+						}
+						if (item.encoded != null) {
+							try {
+								item.encoded.get();
+							}
+							catch (ExecutionException e) {
+								throw new IOException("Failed to compress " + item.file.getFilename(), e.getCause());
+							}
+						}
+						items.add(item);
+					}
+					
+					//when deduplicating, a block whose data has already been written just points at the existing copy
+					BundleFile file = block.get(0);
+					ByteBuffer payload = null;
+					long payloadHash = 0;
+					long existingOffset = -1;
+					if (payloads != null && file.getCompressedSize() <= Integer.MAX_VALUE) {
+						payload = file.getData() != null ? ByteBuffer.wrap(file.getData()) : reader.getRawData(file);		//XXX:  the block hasn't been placed yet, so its offset is still its source offset
+						payloadHash = XxHash64.hash(payload, 0);
+						existingOffset = payloads.find(payloadHash, payload, file, out);
+					}
+					
+					if (existingOffset >= 0) {
+						layout.share(block, existingOffset);
+					}
+					else {
+						//alignment gaps are just filled with 0's
+						long offset = layout.place(block);
+						IOUtils.writePadding(out, offset - writePosition, metrics);
+						if (file.getData() != null) {
+							IOUtils.writeFully(out, ByteBuffer.wrap(file.getData()), metrics);
+							modBytes += file.getUncompressedSize();
+							storedBytes += file.getCompressedSize();
+						}
+						else {
+							IOUtils.transferFully(reader.getChannel(), file.getSourceOffset(), file.getCompressedSize(), out, metrics);
+						}
+						writePosition = offset + file.getCompressedSize();
+						if (payload != null) {
+							payloads.add(payloadHash, file);
+						}
+					}
+					
+					//the data is on its way to disk, so it no longer needs to be held in memory
+					for (Item item : items) {
+						if (item.permits > 0) {
+							bufferedBytes.addAndGet(-item.file.getUncompressedSize());
+							item.file.discardData();
+							window.release(item.permits);
+						}
+					}
+				}
+				
+				BundleWriter.writeHeader(out, reader.getOtherSize(), reader.getOtherHeaderData(), layout.getEndPosition(), bundleFiles, metrics);
+			}
+			finally {
+				readerStage.interrupt();		//in case the writer gave up while the reader is still waiting for room
+			}
+			
+			System.out.println(layout.getReport());
+			System.out.println("Wrote " + bundleFiles.size() + " files (" + overrides.size() + " modded, " + modBytes + " bytes stored as " + storedBytes + " bytes) in " 
+					+ ((System.nanoTime() - startTime) / 1000000) + "ms; at most " + peakBufferedBytes.get() + " bytes of modded data were held in memory (window=" + (long)windowPermits * WINDOW_UNIT + ").");
+		}
+		
+		/**
+		 * The reader stage; loads the modded files in layout order, hands them to the CompressionStage (which also 
+		 * recomputes their hashes, if there's a hasher), and passes every entry on to the writer.
+		 */
+		private void read(List<List<BundleFile>> blocks, List<BundleFile> bundleFiles, Map<BundleFile, File> overrides, BuildManifest manifest, BlockingQueue<Item> queue) {
+			Map<BundleFile, Integer> descriptorIndexes = new IdentityHashMap<>();
+			for (BundleFile file : bundleFiles) {
+				descriptorIndexes.put(file, descriptorIndexes.size());
+			}
+			
+			try {
+				try {
+					for (List<BundleFile> block : blocks) {
+						for (BundleFile file : block) {
+							File modFile = overrides.get(file);
+							if (modFile == null) {
+								queue.put(new Item(file, null, 0, null));
+								continue;
+							}
+							
+							//wait until there's room in the window
+							int permits = (int)Math.min(windowPermits, Math.max(1, (modFile.length() + WINDOW_UNIT - 1) / WINDOW_UNIT));
+							window.acquire(permits);
+							if (! overrideFile(file, modFile, verbose && ! file.isAdded(), metrics)) {
+								window.release(permits);
+								if (file.isAdded()) {
+									throw new IOException("Failed to add file " + file.getFilename());
+								}
+								queue.put(new Item(file, null, 0, null));		//written with its original data
+								continue;
+							}
+							
+							long buffered = bufferedBytes.addAndGet(file.getData().length);
+							long peak = peakBufferedBytes.get();
+							while (buffered > peak && ! peakBufferedBytes.compareAndSet(peak, buffered)) {
+								peak = peakBufferedBytes.get();		//several shards may be loading at once
+							}
+							if (manifest != null) {
+								manifest.put(descriptorIndexes.get(file), BuildManifest.fingerprint(modFile, file.getData()));
+							}
+							if (compressor == null && hasher != null) {
+								file.setHash(hasher.hash(file.getData(), file.getData().length));
+							}
+							queue.put(new Item(file, compressor == null ? null : compressor.submit(file, hasher), permits, null));
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					return;		//the writer has given up
+				}
+				catch (Throwable e) {
+					queue.put(new Item(null, null, 0, e));
+				}
+			}
+			catch (InterruptedException e) {
+				//the writer has given up
+			}
+		}
+	}
+	
+	/**
+	 * Splits the output into several bundles (shards), none bigger than a given size, and writes them concurrently.  
+	 * Each shard is a complete bundle with its own header and descriptor table, written by its own PatchPipeline run on 
+	 * its own thread and channel; the runs share the pipeline's window, so the modded data held in memory is bounded the 
+	 * same way as for a single output.
+	 * 
+	 * Entries are assigned to shards first-fit, largest first.  Entries that share their data always go to the same 
+	 * shard, and each block of data is costed at its size rounded up to ALIGNMENT_TARGET (plus a descriptor per entry), 
+	 * with modded entries costed at the size of their mod file (compression is only kept if it makes a file smaller), 
+	 * so a shard can come out smaller than planned but never bigger.
+	 */
+	private static class ShardWriter {
+		public static final long MAX_SHARD_SIZE = 0xFFFFFFFFL;		//the header stores the bundle size in 32 bits
+		
+		private final PatchPipeline pipeline;
+		private final long shardSize;
+		
+		public ShardWriter(PatchPipeline pipeline, long shardSize) {
+			this.pipeline = pipeline;
+			this.shardSize = Math.min(shardSize, MAX_SHARD_SIZE);
+		}
+		
+		/**
+		 * Returns the name of the given shard of 'output'; the index goes in front of the extension ('patch.bundle' 
+		 * becomes 'patch.0.bundle', 'patch.1.bundle', and so on).
+		 */
+		public static String getShardName(String output, int index) {
+			File file = new File(output);
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			name = dot > 0 ? name.substring(0, dot) + "." + index + name.substring(dot) : name + "." + index;
+			return new File(file.getParentFile(), name).getPath();
+		}
+		
+		/**
+		 * Assigns the entries to shards, and returns the entries of each shard in their original descriptor order.
+		 */
+		public List<List<BundleFile>> plan(List<BundleFile> bundleFiles, Map<BundleFile, File> overrides) {
+			final Map<BundleFile, Integer> descriptorIndexes = new IdentityHashMap<>();
+			for (BundleFile file : bundleFiles) {
+				descriptorIndexes.put(file, descriptorIndexes.size());
+			}
+			
+			List<List<BundleFile>> blocks = new LayoutPlanner(0).group(bundleFiles, overrides.keySet());
+			final Map<List<BundleFile>, Long> costs = new IdentityHashMap<>();
+			for (List<BundleFile> block : blocks) {
+				File modFile = overrides.get(block.get(0));
+				long dataSize = modFile != null ? modFile.length() : block.get(0).getCompressedSize();
+				costs.put(block, alignUp(dataSize) + (long)block.size() * BundleFile.DESCRIPTOR_SIZE);
+			}
+			Collections.sort(blocks, new Comparator<List<BundleFile>>() {
+				@Override
+				public int compare(List<BundleFile> left, List<BundleFile> right) {
+					return Long.compare(costs.get(right), costs.get(left));
+				}
+			});
+			
+			//the header, and at most one alignment gap between the descriptors and the first entry's data
+			long overhead = HEADER_SIZE + ALIGNMENT_TARGET - 1;
+			List<List<BundleFile>> shards = new ArrayList<>();
+			List<Long> shardSizes = new ArrayList<>();
+			for (List<BundleFile> block : blocks) {
+				long cost = costs.get(block);
+				int shard = 0;
+				while (shard < shards.size() && shardSizes.get(shard) + cost > shardSize) {
+					shard++;
+				}
+				if (shard == shards.size()) {
+					if (overhead + cost > shardSize) {
+						System.out.println("WARN:  " + block.get(0).getFilename() + " is too big to fit in a shard of " + shardSize + " bytes; it gets a shard of its own.");
+					}
+					shards.add(new ArrayList<BundleFile>());
+					shardSizes.add(overhead);
+				}
+				shards.get(shard).addAll(block);
+				shardSizes.set(shard, shardSizes.get(shard) + cost);
+			}
+			
+			for (List<BundleFile> shard : shards) {
+				Collections.sort(shard, new Comparator<BundleFile>() {
+					@Override
+					public int compare(BundleFile left, BundleFile right) {
+						return Integer.compare(descriptorIndexes.get(left), descriptorIndexes.get(right));
+					}
+				});
+			}
+			return shards;
+		}
+		
+		/**
+		 * Writes 'bundleFiles' as shards of 'output', replacing the data of each entry in 'overrides' with the content of 
+		 * its mod file, and returns the names of the shards written.
+		 */
+		public List<String> write(String output, List<BundleFile> bundleFiles, final Map<BundleFile, File> overrides) throws IOException, InterruptedException {
+			long startTime = System.nanoTime();
+			List<List<BundleFile>> shards = plan(bundleFiles, overrides);
+			System.out.println("Splitting " + bundleFiles.size() + " files into " + shards.size() + " shards of at most " + shardSize + " bytes...");
+			
+			ExecutorService writers = Executors.newFixedThreadPool(Math.min(shards.size(), Runtime.getRuntime().availableProcessors()));
+			List<String> shardNames = new ArrayList<>();
+			List<Future<Void>> results = new ArrayList<>();
+			try {
+				for (final List<BundleFile> shard : shards) {
+					final String shardName = getShardName(output, shardNames.size());
+					final Map<BundleFile, File> shardOverrides = new IdentityHashMap<>();
+					for (BundleFile file : shard) {
+						if (overrides.containsKey(file)) {
+							shardOverrides.put(file, overrides.get(file));
+						}
+					}
+					shardNames.add(shardName);
+					results.add(writers.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							pipeline.write(shardName, shard, shardOverrides, null);
+							return null;
+						}
+					}));
+				}
+				
+				for (int index = 0; index < results.size(); index++) {
+					try {
+						results.get(index).get();
+					}
+					catch (ExecutionException e) {
+						throw new IOException("Failed to write shard '" + shardNames.get(index) + "'", e.getCause());
+					}
+				}
+			}
+			finally {
+				writers.shutdownNow();		//if a shard failed, the others are abandoned
+			}
+			
+			System.out.println("Wrote " + shards.size() + " shards in " + ((System.nanoTime() - startTime) / 1000000) + "ms.");
+			return shardNames;
+		}
+	}
+	
+	/**
+	 * Creates and applies delta packages, which turn one bundle into another (typically a stock bundle into a modded one) 
+	 * without anyone having to ship or keep a full copy of the result.  Entries are matched by name.  An entry whose stored 
+	 * data is unchanged (same hash and sizes, confirmed by comparing the bytes) just refers to the original entry, a 
+	 * changed entry is stored as a binary delta against the original entry's data, and anything that doesn't delta well 
+	 * (or is new) is stored in full.  The whole package is deflated.
+	 * 
+	 * Layout (inside the deflate stream):  magic[8], originalBundleSize[8], originalDescriptorChecksum[8], entryCount[4], 
+	 * then for every entry of the new bundle, in the order its data is laid out:  descriptorIndex[4], name, hash[16], 
+	 * uncompressedSize[8], compressedSize[8], modifyTime[8], otherBytes[4], compressionAlgo[4], op[1] and the op's data, 
+	 * followed by a CRC32 of everything before it[8].  Since the entries come in layout order, a package can be applied 
+	 * to a new output in a single pass, one entry at a time, and the output keeps the new bundle's layout.  Packages 
+	 * written before the descriptor index was added ("BXDELTA1") hold the entries in descriptor order, and can still be 
+	 * applied.
+	 */
+	private static class DeltaPackage {
+		private static final long DELTA_MAGIC = 0x4258_4445_4C54_4132L;		//"BXDELTA2"
+		private static final long DELTA_MAGIC_V1 = 0x4258_4445_4C54_4131L;		//"BXDELTA1"; no descriptor indexes, and no OP_SHARED
+		private static final int OP_COPY = 0;		//same data as an original entry; originalIndex[4]
+		private static final int OP_DELTA = 1;		//delta against an original entry; originalIndex[4], deltaLength[4], delta[deltaLength]
+		private static final int OP_DATA = 2;		//data stored in full; data[compressedSize]
+		private static final int OP_SHARED = 3;		//shares the data of the previous entry
+		
+		public static void create(String originalPath, String modifiedPath, String deltaPath, Metrics metrics) throws IOException {
+			long startTime = System.nanoTime();
+			try (BundleReader original = new BundleReader(originalPath, metrics); BundleReader modified = new BundleReader(modifiedPath, metrics)) {
+				List<BundleFile> originalFiles = original.getFiles();
+				Map<String, Integer> originalIndexes = new HashMap<>();
+				for (int index = originalFiles.size() - 1; index >= 0; index--) {
+					originalIndexes.put(originalFiles.get(index).getFilename(), index);		//if a name appears more than once, the first one is used
+				}
+				
+				//the entries are stored in the order their data is laid out in the modified bundle
+				final List<BundleFile> modifiedFiles = modified.getFiles();
+				List<Integer> order = new ArrayList<>(modifiedFiles.size());
+				for (int index = 0; index < modifiedFiles.size(); index++) {
+					order.add(index);
+				}
+				Collections.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer left, Integer right) {
+						long leftOffset = modifiedFiles.get(left).getSourceOffset();
+						long rightOffset = modifiedFiles.get(right).getSourceOffset();
+						return leftOffset != rightOffset ? Long.compare(leftOffset, rightOffset) : Integer.compare(left, right);
+					}
+				});
+				
+				int[] numOps = new int[4];
+				Path temp = Paths.get(deltaPath + ".tmp");
+				try (OutputStream file = Files.newOutputStream(temp)) {
+					DeflaterOutputStream deflated = new DeflaterOutputStream(file, new Deflater(Deflater.BEST_COMPRESSION), 64 * 1024);
+					CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(deflated, 64 * 1024), new CRC32());
+					DataOutputStream out = new DataOutputStream(checked);
+					out.writeLong(DELTA_MAGIC);
+					out.writeLong(original.getChannel().size());
+					out.writeLong(descriptorChecksum(original));
+					out.writeInt(modifiedFiles.size());
+					BundleFile previous = null;
+					for (int modifiedIndex : order) {
+						BundleFile entry = modifiedFiles.get(modifiedIndex);
+						out.writeInt(modifiedIndex);
+						out.writeUTF(entry.getFilename());
+						out.write(entry.getHash());
+						out.writeLong(entry.getUncompressedSize());
+						out.writeLong(entry.getCompressedSize());
+						out.writeLong(entry.getModifyTime());
+						out.writeInt(entry.getOtherBytes());
+						out.writeInt(entry.getCompressionAlgo());
+						
+						boolean shared = previous != null && previous.getSourceOffset() == entry.getSourceOffset() && previous.getSourceSize() == entry.getSourceSize();
+						previous = entry;
+						if (shared) {
+							out.writeByte(OP_SHARED);
+							numOps[OP_SHARED]++;
+							continue;
+						}
+						
+						Integer originalIndex = originalIndexes.get(entry.getFilename());
+						BundleFile originalEntry = originalIndex == null ? null : originalFiles.get(originalIndex);
+						ByteBuffer data = modified.getRawData(entry);
+						ByteBuffer originalData = originalEntry == null ? null : original.getRawData(originalEntry);
+						if (originalEntry != null && isSameData(originalEntry, entry, originalData, data)) {
+							out.writeByte(OP_COPY);
+							out.writeInt(originalIndex);
+							numOps[OP_COPY]++;
+							continue;
+						}
+						
+						byte[] delta = originalData == null ? null : DeltaEncoder.encode(originalData, data);
+						if (delta != null && delta.length < data.remaining()) {
+							out.writeByte(OP_DELTA);
+							out.writeInt(originalIndex);
+							out.writeInt(delta.length);
+							out.write(delta);
+							numOps[OP_DELTA]++;
+						}
+						else {
+							out.writeByte(OP_DATA);
+							writeData(out, data);
+							numOps[OP_DATA]++;
+						}
+					}
+					out.writeLong(checked.getChecksum().getValue());
+					out.flush();
+					deflated.finish();
+				}
+				Files.move(temp, Paths.get(deltaPath), StandardCopyOption.REPLACE_EXISTING);
+				
+				System.out.println("Wrote delta package '" + deltaPath + "' (" + Files.size(Paths.get(deltaPath)) + " bytes, for a " + modified.getChannel().size() + " byte bundle) in " 
+						+ ((System.nanoTime() - startTime) / 1000000) + "ms; " + numOps[OP_COPY] + " files unchanged, " + numOps[OP_DELTA] + " stored as deltas, " + numOps[OP_DATA] + " stored in full, " + numOps[OP_SHARED] + " sharing another file's data.");
+			}
+		}
+		
+		/**
+		 * Compares the stored data of two entries; the descriptors are checked first, and the bytes only if they agree.
+		 */
+		private static boolean isSameData(BundleFile left, BundleFile right, ByteBuffer leftData, ByteBuffer rightData) {
+			if (left.getCompressedSize() != right.getCompressedSize() || left.getUncompressedSize() != right.getUncompressedSize() || 
+					left.getCompressionAlgo() != right.getCompressionAlgo() || ! Arrays.equals(left.getHash(), right.getHash())) {
+				return false;
+			}
+			return leftData.equals(rightData);		//XXX:  the hash isn't updated when an entry is modified, so it can't be relied on by itself
+		}
+		
+		private static void writeData(OutputStream out, ByteBuffer data) throws IOException {
+			byte[] buffer = BufferPool.SHARED.acquire(64 * 1024);
+			try {
+				ByteBuffer source = data.duplicate();
+				while (source.hasRemaining()) {
+					int length = Math.min(buffer.length, source.remaining());
+					source.get(buffer, 0, length);
+					out.write(buffer, 0, length);
+				}
+			}
+			finally {
+				BufferPool.SHARED.release(buffer);
+			}
+		}
+		
+		/**
+		 * Checksum of a bundle's header and descriptor table, used to make sure that a delta is applied to the same 
+		 * bundle it was made from.
+		 */
+		private static long descriptorChecksum(BundleReader reader) throws IOException {
+			CRC32 crc = new CRC32();
+			ByteBuffer descriptors = reader.getChannel().map(MapMode.READ_ONLY, 0, HEADER_SIZE + reader.getDataOffset());
+			byte[] chunk = new byte[Math.min(descriptors.remaining(), 64 * 1024)];
+			while (descriptors.hasRemaining()) {
+				int length = Math.min(chunk.length, descriptors.remaining());
+				descriptors.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+			return crc.getValue();
+		}
+		
+		/**
+		 * Applies a delta package to the bundle it was made from.  The result is written to 'outputPath', or if that is 
+		 * null, the bundle is patched in place (which is only possible if the delta doesn't add, remove or reorder files).
+		 */
+		public static void apply(String bundlePath, String deltaPath, String outputPath, boolean resetMetadata, Metrics metrics) throws IOException {
+			if (outputPath == null && InPlacePatcher.recover(bundlePath, metrics)) {
+				System.out.println("WARN:  Found an incomplete in-place update of '" + bundlePath + "'; the bundle has been restored to its previous state.");
+			}
+			
+			try (BundleReader reader = new BundleReader(bundlePath, metrics); InputStream file = new FileInputStream(deltaPath)) {
+				CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new InflaterInputStream(file), 64 * 1024), new CRC32());
+				DataInputStream in = new DataInputStream(checked);
+				long magic = in.readLong();
+				if (magic != DELTA_MAGIC && magic != DELTA_MAGIC_V1) {
+					throw new IOException("Not a delta package:  " + deltaPath);
+				}
+				if (in.readLong() != reader.getChannel().size() || in.readLong() != descriptorChecksum(reader)) {
+					throw new IOException("The delta package '" + deltaPath + "' was not made from '" + bundlePath + "' (or the bundle has been modified since)");
+				}
+				int count = in.readInt();
+				if (count < 0) {
+					throw new IOException("Delta package is damaged (negative file count):  " + deltaPath);
+				}
+				
+				if (outputPath != null) {
+					writeOutput(reader, checked, in, count, magic == DELTA_MAGIC, outputPath, metrics);
+					MetadataStore.bundleChanged(outputPath, resetMetadata, metrics);
+					System.out.println("Applied '" + deltaPath + "' to '" + bundlePath + "'; the result was written to " + outputPath + ".");
+					return;
+				}
+				
+				List<BundleFile> modifiedFiles = readChanges(reader, checked, in, count, magic == DELTA_MAGIC);
+				new InPlacePatcher(reader, metrics).patch(modifiedFiles);
+				MetadataStore.bundleChanged(bundlePath, resetMetadata, metrics);
+				System.out.println("Applied '" + deltaPath + "' to '" + bundlePath + "' in place; " + modifiedFiles.size() + " files updated.");
+			}
+			catch (EOFException e) {
+				throw new IOException("Delta package is damaged (truncated):  " + deltaPath, e);
+			}
+		}
+		
+		/**
+		 * Writes the new bundle to 'outputPath' as the package is read, one entry at a time; each entry's data is copied 
+		 * from the original bundle, decoded from its delta, or streamed from the package straight to the output, so only 
+		 * a single entry is ever held in memory.  The entries are laid out in the order the package holds them (the new 
+		 * bundle's own layout), and the descriptors are written last.  The output is written to a temporary file, which 
+		 * only replaces 'outputPath' once the whole package has been read and its checksum verified.
+		 */
+		private static void writeOutput(BundleReader reader, CheckedInputStream checked, DataInputStream in, int count, boolean indexed, String outputPath, Metrics metrics) throws IOException {
+			List<BundleFile> originalFiles = reader.getFiles();
+			BundleFile[] newFiles = new BundleFile[count];
+			Path temp = Paths.get(outputPath + ".tmp");
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long writePosition = HEADER_SIZE + (long)count * BundleFile.DESCRIPTOR_SIZE;
+				out.position(writePosition);
+				BundleFile previous = null;
+				for (int record = 0; record < count; record++) {
+					int index = indexed ? in.readInt() : record;
+					if (index < 0 || index >= count || newFiles[index] != null) {
+						throw new IOException("Delta package is damaged (bad descriptor index " + index + ")");
+					}
+					BundleFile entry = readDescriptor(in);
+					int op = in.readUnsignedByte();
+					if (op == OP_SHARED) {
+						if (previous == null || previous.getCompressedSize() != entry.getCompressedSize()) {
+							throw new IOException("Delta package is damaged (" + entry.getFilename() + " shares data that doesn't match it)");
+						}
+						entry.setOffset(previous.getOffset());
+					}
+					else {
+						//alignment gaps are just filled with 0's
+						long offset = alignUp(writePosition);
+						IOUtils.writePadding(out, offset - writePosition, metrics);
+						entry.setOffset(offset);
+						if (op == OP_COPY) {
+							BundleFile source = getEntry(originalFiles, in.readInt());
+							if (source.getSourceSize() != entry.getCompressedSize()) {
+								throw new IOException("Delta package is damaged (" + entry.getFilename() + " doesn't match the size of the file it copies)");
+							}
+							IOUtils.transferFully(reader.getChannel(), source.getSourceOffset(), source.getSourceSize(), out, metrics);
+						}
+						else if (op == OP_DELTA) {
+							BundleFile source = getEntry(originalFiles, in.readInt());
+							byte[] delta = new byte[in.readInt()];
+							in.readFully(delta);
+							byte[] data = DeltaEncoder.decode(reader.getRawData(source), delta, IOUtils.toArraySize(entry.getCompressedSize(), "stored size of " + entry.getFilename()));
+							IOUtils.writeFully(out, ByteBuffer.wrap(data), metrics);
+						}
+						else if (op == OP_DATA) {
+							copyData(in, out, entry.getCompressedSize(), metrics);
+						}
+						else {
+							throw new IOException("Delta package is damaged (unknown op " + op + " for " + entry.getFilename() + ")");
+						}
+						writePosition = offset + entry.getCompressedSize();
+					}
+					newFiles[index] = entry;
+					previous = entry;
+				}
+				long checksum = checked.getChecksum().getValue();
+				if (in.readLong() != checksum) {
+					throw new IOException("Delta package is damaged (checksum mismatch)");
+				}
+				
+				BundleWriter.writeHeader(out, reader.getOtherSize(), reader.getOtherHeaderData(), writePosition, Arrays.asList(newFiles), metrics);
+			}
+			catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			Files.move(temp, Paths.get(outputPath), StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		/**
+		 * Reads the package for patching the bundle in place, and returns the original entries that change, with their 
+		 * new data and descriptors.  Every entry of the package has to replace the original entry in the same position.
+		 */
+		private static List<BundleFile> readChanges(BundleReader reader, CheckedInputStream checked, DataInputStream in, int count, boolean indexed) throws IOException {
+			List<BundleFile> originalFiles = reader.getFiles();
+			if (count != originalFiles.size()) {
+				throw new IOException("The delta package adds or removes files, so it can't be applied in place; give an output file instead");
+			}
+			
+			List<BundleFile> modifiedFiles = new ArrayList<>();
+			boolean[] seen = new boolean[count];
+			BundleFile previous = null;		//the original entry of the previous record, as it will be once patched
+			for (int record = 0; record < count; record++) {
+				int index = indexed ? in.readInt() : record;
+				if (index < 0 || index >= count || seen[index]) {
+					throw new IOException("Delta package is damaged (bad descriptor index " + index + ")");
+				}
+				seen[index] = true;
+				BundleFile entry = readDescriptor(in);
+				BundleFile originalEntry = originalFiles.get(index);
+				if (! entry.getFilename().equals(originalEntry.getFilename())) {
+					throw new IOException("The delta package reorders files, so it can't be applied in place; give an output file instead");
+				}
+				
+				int op = in.readUnsignedByte();
+				ByteBuffer source = null;		//the stored data of an original entry that the new data is the same as
+				byte[] data = null;
+				if (op == OP_COPY) {
+					int sourceIndex = in.readInt();
+					if (sourceIndex == index && isSameDescriptor(entry, originalEntry)) {
+						previous = originalEntry;
+						continue;
+					}
+					source = reader.getRawData(getEntry(originalFiles, sourceIndex));
+				}
+				else if (op == OP_SHARED) {
+					if (previous == null) {
+						throw new IOException("Delta package is damaged (" + entry.getFilename() + " shares the data of a file that doesn't exist)");
+					}
+					if (previous.getData() == null && previous.getSourceOffset() == originalEntry.getSourceOffset() && previous.getSourceSize() == originalEntry.getSourceSize() 
+							&& isSameDescriptor(entry, originalEntry)) {
+						previous = originalEntry;
+						continue;		//already shares the same, unchanged data
+					}
+					data = previous.getData();
+					if (data == null) {
+						source = reader.getRawData(previous);
+					}
+				}
+				else if (op == OP_DELTA) {
+					BundleFile sourceEntry = getEntry(originalFiles, in.readInt());
+					byte[] delta = new byte[in.readInt()];
+					in.readFully(delta);
+					data = DeltaEncoder.decode(reader.getRawData(sourceEntry), delta, IOUtils.toArraySize(entry.getCompressedSize(), "stored size of " + entry.getFilename()));
+				}
+				else if (op == OP_DATA) {
+					data = new byte[IOUtils.toArraySize(entry.getCompressedSize(), "stored size of " + entry.getFilename())];
+					in.readFully(data);
+				}
+				else {
+					throw new IOException("Delta package is damaged (unknown op " + op + " for " + entry.getFilename() + ")");
+				}
+				
+				if (data == null) {
+					data = new byte[source.remaining()];
+					source.get(data);
+				}
+				originalEntry.setStoredData(data, entry.getUncompressedSize(), entry.getCompressionAlgo());
+				originalEntry.setMetadata(entry.getHash(), entry.getModifyTime(), entry.getOtherBytes());
+				modifiedFiles.add(originalEntry);
+				previous = originalEntry;
+			}
+			long checksum = checked.getChecksum().getValue();
+			if (in.readLong() != checksum) {
+				throw new IOException("Delta package is damaged (checksum mismatch)");
+			}
+			return modifiedFiles;
+		}
+		
+		/**
+		 * Reads the descriptor fields of a package entry, up to (but not including) its op.
+		 */
+		private static BundleFile readDescriptor(DataInputStream in) throws IOException {
+			String name = in.readUTF();
+			byte[] hash = new byte[16];
+			in.readFully(hash);
+			long uncompressedSize = in.readLong();
+			long compressedSize = in.readLong();
+			long modifyTime = in.readLong();
+			int otherBytes = in.readInt();
+			int algo = in.readInt();
+			return new BundleFile(name, hash, uncompressedSize, compressedSize, 0, -1, modifyTime, otherBytes, algo);
+		}
+		
+		/**
+		 * Streams 'length' bytes of entry data from the package to the output, a buffer at a time.
+		 */
+		private static void copyData(DataInputStream in, FileChannel out, long length, Metrics metrics) throws IOException {
+			byte[] buffer = BufferPool.SHARED.acquire(64 * 1024);
+			try {
+				while (length > 0) {
+					int numToCopy = (int)Math.min(length, buffer.length);
+					in.readFully(buffer, 0, numToCopy);
+					IOUtils.writeFully(out, ByteBuffer.wrap(buffer, 0, numToCopy), metrics);
+					length -= numToCopy;
+				}
+			}
+			finally {
+				BufferPool.SHARED.release(buffer);
+			}
+		}
+		
+		private static BundleFile getEntry(List<BundleFile> files, int index) throws IOException {
+			if (index < 0 || index >= files.size()) {
+				throw new IOException("Delta package is damaged (refers to file " + index + " of " + files.size() + ")");
+			}
+			return files.get(index);
+		}
+		
+		private static boolean isSameDescriptor(BundleFile left, BundleFile right) {
+			return left.getUncompressedSize() == right.getUncompressedSize() && left.getCompressionAlgo() == right.getCompressionAlgo() && 
+					left.getModifyTime() == right.getModifyTime() && left.getOtherBytes() == right.getOtherBytes() && Arrays.equals(left.getHash(), right.getHash());
+		}
+	}
+	
+	/**
+	 * Binary delta encoding in the style of VCDIFF:  the new data is described as a series of instructions that either 
+	 * COPY a run of bytes from the old data, or ADD literal bytes.  Matches are found by indexing the old data in 
+	 * fixed-size blocks and looking up a rolling hash of every position in the new data, then extending each match in 
+	 * both directions.
+	 * 
+	 * Each instruction starts with a varint holding (length << 1 | type); a COPY is followed by a varint offset into the 
+	 * old data, and an ADD by its literal bytes.
+	 */
+	private static class DeltaEncoder {
+		private static final int BLOCK_SIZE = 16;
+		private static final int MAX_TABLE_BITS = 24;
+		private static final int HASH_MULTIPLIER = 0x01000193;
+		private static final int COPY = 0;
+		private static final int ADD = 1;
+		
+		public static byte[] encode(ByteBuffer oldData, ByteBuffer newData) {
+			ByteBuffer source = oldData.slice();
+			ByteBuffer target = newData.slice();
+			int oldLength = source.remaining();
+			int newLength = target.remaining();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(newLength, 1 << 20) / 4 + 16);
+			if (oldLength < BLOCK_SIZE || newLength < BLOCK_SIZE) {
+				writeAdd(out, target, 0, newLength);
+				return out.toByteArray();
+			}
+			
+			//index the old data, one entry per block
+			int tableBits = Math.min(MAX_TABLE_BITS, 33 - Integer.numberOfLeadingZeros(oldLength / BLOCK_SIZE));
+			int[] table = new int[1 << tableBits];
+			Arrays.fill(table, -1);
+			for (int position = 0; position + BLOCK_SIZE <= oldLength; position += BLOCK_SIZE) {
+				table[slot(hash(source, position), tableBits)] = position;
+			}
+			
+			int power = 1;		//HASH_MULTIPLIER^(BLOCK_SIZE - 1), for removing the outgoing byte from the rolling hash
+			for (int i = 1; i < BLOCK_SIZE; i++) {
+				power *= HASH_MULTIPLIER;
+			}
+			
+			int literalStart = 0;
+			int position = 0;
+			int hash = hash(target, 0);
+			while (position + BLOCK_SIZE <= newLength) {
+				int candidate = table[slot(hash, tableBits)];
+				if (candidate >= 0 && matches(source, candidate, target, position, BLOCK_SIZE)) {
+					//extend the match backwards (into the pending literals) and forwards as far as it goes
+					int matchStart = position;
+					int oldStart = candidate;
+					while (matchStart > literalStart && oldStart > 0 && source.get(oldStart - 1) == target.get(matchStart - 1)) {
+						matchStart--;
+						oldStart--;
+					}
+					int matchEnd = position + BLOCK_SIZE;
+					int oldEnd = candidate + BLOCK_SIZE;
+					while (matchEnd < newLength && oldEnd < oldLength && source.get(oldEnd) == target.get(matchEnd)) {
+						matchEnd++;
+						oldEnd++;
+					}
+					
+					if (matchStart > literalStart) {
+						writeAdd(out, target, literalStart, matchStart - literalStart);
+					}
+					writeVarLong(out, (long)(matchEnd - matchStart) << 1 | COPY);
+					writeVarLong(out, oldStart);
+					
+					literalStart = position = matchEnd;
+					if (position + BLOCK_SIZE <= newLength) {
+						hash = hash(target, position);
+					}
+					continue;
+				}
+				
+				if (position + BLOCK_SIZE < newLength) {
+					hash = (hash - (target.get(position) & 0xFF) * power) * HASH_MULTIPLIER + (target.get(position + BLOCK_SIZE) & 0xFF);
+				}
+				position++;
+			}
+			if (literalStart < newLength) {
+				writeAdd(out, target, literalStart, newLength - literalStart);
+			}
+			
+			return out.toByteArray();
+		}
+		
+		/**
+		 * Rebuilds the new data from the old data and a delta.
+		 */
+		public static byte[] decode(ByteBuffer oldData, byte[] delta, int newLength) throws IOException {
+			ByteBuffer source = oldData.slice();
+			ByteBuffer in = ByteBuffer.wrap(delta);
+			byte[] target = new byte[newLength];
+			int outPos = 0;
+			while (in.hasRemaining()) {
+				long header = readVarLong(in);
+				long length = header >>> 1;
+				if (length > newLength - outPos) {
+					throw new IOException("Corrupt delta:  instruction overruns the output");
+				}
+				
+				if ((header & 1) == COPY) {
+					long offset = readVarLong(in);
+					if (offset + length > source.capacity()) {
+						throw new IOException("Corrupt delta:  copy from outside of the original data");
+					}
+					source.position((int)offset);
+					source.get(target, outPos, (int)length);
+				}
+				else {
+					if (length > in.remaining()) {
+						throw new IOException("Corrupt delta:  truncated literal");
+					}
+					in.get(target, outPos, (int)length);
+				}
+				outPos += (int)length;
+			}
+			
+			if (outPos != newLength) {
+				throw new IOException("Corrupt delta:  produced " + outPos + " bytes, expected " + newLength);
+			}
+			return target;
+		}
+		
+		private static int hash(ByteBuffer data, int position) {
+			int hash = 0;
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				hash = hash * HASH_MULTIPLIER + (data.get(position + i) & 0xFF);
+			}
+			return hash;
+		}
+		
+		private static int slot(int hash, int tableBits) {
+			return (hash * 0x9E3779B1) >>> (32 - tableBits);
+		}
+		
+		private static boolean matches(ByteBuffer left, int leftPos, ByteBuffer right, int rightPos, int length) {
+			for (int i = 0; i < length; i++) {
+				if (left.get(leftPos + i) != right.get(rightPos + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private static void writeAdd(ByteArrayOutputStream out, ByteBuffer data, int start, int length) {
+			writeVarLong(out, (long)length << 1 | ADD);
+			ByteBuffer literal = data.duplicate();
+			literal.position(start);
+			byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+			while (length > 0) {
+				int numToCopy = Math.min(length, buffer.length);
+				literal.get(buffer, 0, numToCopy);
+				out.write(buffer, 0, numToCopy);
+				length -= numToCopy;
+			}
+		}
+		
+		private static void writeVarLong(ByteArrayOutputStream out, long value) {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int)(value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write((int)value);
+		}
+		
+		private static long readVarLong(ByteBuffer in) throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (! in.hasRemaining()) {
+					throw new IOException("Corrupt delta:  truncated instruction");
+				}
+				int next = in.get() & 0xFF;
+				value |= (long)(next & 0x7F) << shift;
+				if ((next & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Corrupt delta:  bad varint");
+		}
+	}
+	
+	/**
+	 * Collects timing and throughput metrics for a run:  the wall time of each phase, the bytes read and written (during 
+	 * each phase, and overall), the number of entries decoded with each codec, and peak heap use.  Phases are delimited 
+	 * with start() and Phase.end(), and the counters can be updated from any thread; bytes moved by the run's other threads 
+	 * while a phase is running are counted towards it too.  Every run (and every server request) has its own instance, 
+	 * which is passed to everything that reads or writes on its behalf, so runs in the same process never count each 
+	 * other's work.  Everything is reported at the end of the run, as JSON or in Prometheus' text exposition format.
+	 */
+	private static class Metrics {
+		private final long startTime = System.nanoTime();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong bytesWritten = new AtomicLong();
+		private final Map<String, long[]> phases = new LinkedHashMap<>();		//name -> {count, elapsedNanos, bytesRead, bytesWritten}
+		private final ConcurrentMap<String, long[]> decoded = new ConcurrentHashMap<>();		//codec name -> {entries, storedBytes, decodedBytes}
+		
+		public class Phase {
+			private final String name;
+			private final long startTime = System.nanoTime();
+			private final long startRead = bytesRead.get();
+			private final long startWritten = bytesWritten.get();
+			
+			private Phase(String name) {
+				this.name = name;
+			}
+			
+			public void end() {
+				long elapsed = System.nanoTime() - startTime;
+				synchronized (phases) {
+					long[] totals = phases.get(name);
+					if (totals == null) {
+						totals = new long[4];
+						phases.put(name, totals);
+					}
+					totals[0]++;
+					totals[1] += elapsed;
+					totals[2] += bytesRead.get() - startRead;
+					totals[3] += bytesWritten.get() - startWritten;
+				}
+			}
+		}
+		
+		public Phase start(String name) {
+			return new Phase(name);
+		}
+		
+		public void addRead(long numBytes) {
+			bytesRead.addAndGet(numBytes);
+		}
+		
+		public void addWritten(long numBytes) {
+			bytesWritten.addAndGet(numBytes);
+		}
+		
+		/**
+		 * Records that an entry was decoded; its stored data counts as bytes read.
+		 */
+		public void addDecoded(BundleFile file) {
+			String codec = Codecs.getName(file.getCompressionAlgo());
+			long[] totals = decoded.get(codec);
+			if (totals == null) {
+				decoded.putIfAbsent(codec, new long[3]);
+				totals = decoded.get(codec);
+			}
+			synchronized (totals) {
+				totals[0]++;
+				totals[1] += file.getCompressedSize();
+				totals[2] += file.getUncompressedSize();
+			}
+			addRead(file.getCompressedSize());
+		}
+		
+		/**
+		 * Returns the peak heap use of the JVM so far, as the sum of the peak use of each heap memory pool.  The pools 
+		 * don't necessarily peak at the same time, so this can overstate the true peak a little.
+		 */
+		public static long getPeakHeap() {
+			long peak = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+					peak += pool.getPeakUsage().getUsed();
+				}
+			}
+			return peak;
+		}
+		
+		/**
+		 * Prints a summary of each phase if 'verbose' is set, and writes the metrics to 'path' if it's given (or prints 
+		 * them, if 'path' is empty).  Nothing is written if no phase was ever started.
+		 */
+		public void report(String path, boolean verbose) throws IOException {
+			synchronized (phases) {
+				if (phases.isEmpty()) {
+					return;
+				}
+				if (verbose) {
+					for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+						long[] totals = phase.getValue();
+						System.out.println("Phase '" + phase.getKey() + "' took " + (totals[1] / 1000000) + "ms; read " + totals[2] + " bytes, wrote " + totals[3] + " bytes (" 
+								+ String.format(Locale.ROOT, "%.1f", getMegabytesPerSecond(totals[2] + totals[3], totals[1])) + " MB/s).");
+					}
+				}
+			}
+			
+			if (path == null) {
+				return;
+			}
+			String text = path.endsWith(".prom") ? toPrometheus() : toJson();
+			if (path.isEmpty()) {
+				System.out.print(text);
+			}
+			else {
+				Files.write(Paths.get(path), text.getBytes(StandardCharsets.UTF_8));
+				System.out.println("Metrics written to '" + path + "'.");
+			}
+		}
+		
+		private static double getMegabytesPerSecond(long numBytes, long elapsedNanos) {
+			return elapsedNanos <= 0 ? 0 : numBytes / (elapsedNanos / 1e9) / (1024 * 1024);
+		}
+		
+		public String toJson() {
+			StringBuilder json = new StringBuilder();
+			json.append("{\n  \"elapsedMs\": ").append((System.nanoTime() - startTime) / 1000000);
+			json.append(",\n  \"bytesRead\": ").append(bytesRead.get());
+			json.append(",\n  \"bytesWritten\": ").append(bytesWritten.get());
+			json.append(",\n  \"peakHeapBytes\": ").append(getPeakHeap());
+			json.append(",\n  \"phases\": [");
+			synchronized (phases) {
+				String separator = "\n";
+				for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+					long[] totals = phase.getValue();
+					json.append(separator).append("    {\"name\": \"").append(phase.getKey()).append("\", \"count\": ").append(totals[0]).append(", \"elapsedMs\": ").append(totals[1] / 1000000)
+							.append(", \"bytesRead\": ").append(totals[2]).append(", \"bytesWritten\": ").append(totals[3])
+							.append(", \"mbPerSecond\": ").append(String.format(Locale.ROOT, "%.2f", getMegabytesPerSecond(totals[2] + totals[3], totals[1]))).append("}");
+					separator = ",\n";
+				}
+			}
+			json.append("\n  ],\n  \"decoded\": {");
+			String separator = "\n";
+			for (Map.Entry<String, long[]> codec : new TreeMap<>(decoded).entrySet()) {
+				long[] totals = codec.getValue();
+				synchronized (totals) {
+					json.append(separator).append("    \"").append(codec.getKey()).append("\": {\"entries\": ").append(totals[0]).append(", \"storedBytes\": ").append(totals[1])
+							.append(", \"decodedBytes\": ").append(totals[2]).append("}");
+				}
+				separator = ",\n";
+			}
+			json.append("\n  }\n}\n");
+			return json.toString();
+		}
+		
+		public String toPrometheus() {
+			StringBuilder text = new StringBuilder();
+			metric(text, "bundle_explorer_elapsed_seconds", "gauge", "Wall time of the whole run.");
+			text.append("bundle_explorer_elapsed_seconds ").append(seconds(System.nanoTime() - startTime)).append("\n");
+			metric(text, "bundle_explorer_read_bytes_total", "counter", "Bytes read from bundles and mod files.");
+			text.append("bundle_explorer_read_bytes_total ").append(bytesRead.get()).append("\n");
+			metric(text, "bundle_explorer_written_bytes_total", "counter", "Bytes written to bundles and other output files.");
+			text.append("bundle_explorer_written_bytes_total ").append(bytesWritten.get()).append("\n");
+			metric(text, "bundle_explorer_peak_heap_bytes", "gauge", "Peak heap use (the sum of the peak use of each heap pool).");
+			text.append("bundle_explorer_peak_heap_bytes ").append(getPeakHeap()).append("\n");
+			
+			synchronized (phases) {
+				metric(text, "bundle_explorer_phase_seconds", "gauge", "Wall time spent in each phase.");
+				for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+					text.append("bundle_explorer_phase_seconds{phase=\"").append(phase.getKey()).append("\"} ").append(seconds(phase.getValue()[1])).append("\n");
+				}
+				metric(text, "bundle_explorer_phase_read_bytes", "gauge", "Bytes read while each phase was running.");
+				for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+					text.append("bundle_explorer_phase_read_bytes{phase=\"").append(phase.getKey()).append("\"} ").append(phase.getValue()[2]).append("\n");
+				}
+				metric(text, "bundle_explorer_phase_written_bytes", "gauge", "Bytes written while each phase was running.");
+				for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+					text.append("bundle_explorer_phase_written_bytes{phase=\"").append(phase.getKey()).append("\"} ").append(phase.getValue()[3]).append("\n");
+				}
+			}
+			
+			metric(text, "bundle_explorer_decoded_entries_total", "counter", "Entries decoded, by compression codec.");
+			for (Map.Entry<String, long[]> codec : new TreeMap<>(decoded).entrySet()) {
+				text.append("bundle_explorer_decoded_entries_total{codec=\"").append(codec.getKey()).append("\"} ").append(codec.getValue()[0]).append("\n");
+			}
+			metric(text, "bundle_explorer_decoded_bytes_total", "counter", "Decoded bytes, by compression codec.");
+			for (Map.Entry<String, long[]> codec : new TreeMap<>(decoded).entrySet()) {
+				text.append("bundle_explorer_decoded_bytes_total{codec=\"").append(codec.getKey()).append("\"} ").append(codec.getValue()[2]).append("\n");
+			}
+			return text.toString();
+		}
+		
+		private static void metric(StringBuilder text, String name, String type, String help) {
+			text.append("# HELP ").append(name).append(" ").append(help).append("\n");
+			text.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+		}
+		
+		private static String seconds(long nanos) {
+			return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+		}
+	}
+	
+	/**
+	 * Generates synthetic bundles for benchmarking, so that results can be reproduced without a copy of the game.  Every 
+	 * entry is derived from the seed and its own index, so the same options always produce the same bundle, byte for 
+	 * byte.  Entry sizes follow a log-uniform distribution between the minimum and maximum size, and each entry is 
+	 * compressed with a codec picked from a weighted mix.  Entry content is made of words from a small vocabulary, so 
+	 * that it compresses about as well as the game's text assets do.
+	 */
+	private static class SyntheticBundle {
+		private static final String[] WORDS = {"<entity>", "</entity>", "name=", "value=", "template", "geralt", "novigrad", "item", "0.5", "true", 
+				"false", "\n", "\t", "witcher", "sword", "silver", "steel", "quest", "1024", "abilities", "character", "\"", "=", "{", "}"};
+		private static final String[] EXTENSIONS = {"xml", "w2ent", "csv", "dds", "redswf", "w2mesh"};
+		private static final int MAX_SIZE_KB = 1024 * 1024;		//entries are generated in a byte[], so they have to stay well under 2GB
+		
+		private final int numEntries;
+		private final int minSize;
+		private final int maxSize;
+		private final int numModded;
+		private final long seed;
+		private final List<CompressingCodec> codecs = new ArrayList<>();		//null means stored uncompressed
+		private final List<Integer> weights = new ArrayList<>();
+		private int totalWeight;
+		
+		public SyntheticBundle(List<String> flags) {
+			String entries = getOption(flags, "--entries");
+			String sizes = getOption(flags, "--sizes");
+			String compression = getOption(flags, "--compression");
+			String modded = getOption(flags, "--modded");
+			String seed = getOption(flags, "--seed");
+			this.numEntries = entries == null ? 1000 : Integer.parseInt(entries);
+			this.minSize = (sizes == null ? 1 : Integer.parseInt(sizes.substring(0, sizes.indexOf('-')))) * 1024;
+			this.maxSize = (sizes == null ? 1024 : Integer.parseInt(sizes.substring(sizes.indexOf('-') + 1))) * 1024;
+			this.numModded = modded == null ? Math.max(1, numEntries / 20) : Integer.parseInt(modded);
+			this.seed = seed == null ? 70 : Long.parseLong(seed);
+			
+			for (String entry : (compression == null ? "none:40,zlib:30,lz4:30" : compression).split(",")) {
+				int separator = entry.indexOf(':');
+				String codecName = separator < 0 ? entry : entry.substring(0, separator);
+				CompressingCodec codec = Codecs.getCompressor(codecName);
+				if (codec == null && ! "none".equalsIgnoreCase(codecName)) {
+					throw new IllegalArgumentException("Unsupported compression codec '" + codecName + "' in '" + compression + "'");
+				}
+				codecs.add(codec);
+				weights.add(separator < 0 ? 1 : Integer.parseInt(entry.substring(separator + 1)));
+				totalWeight += weights.get(weights.size() - 1);
+			}
+		}
+		
+		private Random getRandom(int index) {
+			return new Random(seed * 0x9E3779B97F4A7C15L + index);
+		}
+		
+		public String getName(int index) {
+			return "synthetic\\group" + (index % 16) + "\\file" + index + "." + EXTENSIONS[index % EXTENSIONS.length];
+		}
+		
+		private int getSize(Random random) {
+			return (int)Math.round(minSize * Math.pow((double)maxSize / minSize, random.nextDouble()));
+		}
+		
+		private static byte[] getContent(Random random, int size) {
+			byte[] content = new byte[size];
+			int position = 0;
+			while (position < size) {
+				String word = random.nextInt(8) == 0 ? Integer.toString(random.nextInt(100000)) : WORDS[random.nextInt(WORDS.length)];
+				for (int i = 0; i < word.length() && position < size; i++) {
+					content[position++] = (byte)word.charAt(i);
+				}
+				if (position < size) {
+					content[position++] = (byte)(random.nextInt(10) == 0 ? '\n' : ' ');
+				}
+			}
+			return content;
+		}
+		
+		/**
+		 * Writes the synthetic bundle.  Entries are generated, compressed and written one at a time, and the descriptors 
+		 * are written last, so bundles of any size can be generated.
+		 */
+		public void generate(String path, Metrics metrics) throws IOException {
+			long startTime = System.nanoTime();
+			List<BundleFile> files = new ArrayList<>(numEntries);
+			long dataStart = HEADER_SIZE + (long)numEntries * BundleFile.DESCRIPTOR_SIZE;
+			try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				out.position(dataStart);
+				long position = dataStart;
+				for (int index = 0; index < numEntries; index++) {
+					Random random = getRandom(index);
+					int size = getSize(random);
+					int pick = random.nextInt(totalWeight);
+					int choice = 0;
+					while (pick >= weights.get(choice)) {
+						pick -= weights.get(choice++);
+					}
+					CompressingCodec codec = codecs.get(choice);
+					
+					byte[] data = getContent(random, size);
+					byte[] hash = new byte[16];
+					random.nextBytes(hash);
+					BundleFile file = BundleFile.newEntry(getName(index));
+					file.setStoredData(data, size, 0);
+					file.setMetadata(hash, 0x01D0_8A3C_0000_0000L + index, 0);
+					if (codec != null) {
+						byte[] compressed = codec.compress(data, size);
+						if (compressed.length < size) {
+							file.setCompressedData(compressed, codec.getId());
+						}
+					}
+					
+					long offset = alignUp(position);
+					IOUtils.writePadding(out, offset - position, metrics);
+					IOUtils.writeFully(out, ByteBuffer.wrap(file.getData()), metrics);
+					file.setOffset(offset);
+					file.discardData();
+					files.add(file);
+					position = offset + file.getCompressedSize();
+				}
+				
+				BundleWriter.writeHeader(out, 0, new byte[12], position, files, metrics);
+			}
+			
+			System.out.println("Generated synthetic bundle '" + path + "'; " + numEntries + " files, " + Files.size(Paths.get(path)) + " bytes, seed=" + seed + " in " 
+					+ ((System.nanoTime() - startTime) / 1000000) + "ms.");
+		}
+		
+		/**
+		 * Writes a mod directory that overrides 'numModded' of the bundle's files (spread evenly through it) with new 
+		 * content of a similar size.
+		 */
+		public void writeMods(String modRoot) throws IOException {
+			int numWritten = 0;
+			for (int index = 0; index < numEntries && numWritten < numModded; index += Math.max(1, numEntries / numModded)) {
+				Random random = getRandom(index);
+				int size = getSize(random) + 1 + random.nextInt(ALIGNMENT_TARGET);
+				Path modFile = Paths.get(modRoot, getName(index).split("\\\\"));
+				Files.createDirectories(modFile.getParent());
+				Files.write(modFile, getContent(getRandom(~index), size));
+				numWritten++;
+			}
+			System.out.println("Generated " + numWritten + " modded files under '" + modRoot + "'.");
+		}
+	}
+	
+	/**
+	 * A small benchmark harness for the stages of patching a bundle:  opening it (reading the header and descriptors), 
+	 * parsing the descriptor table alone, decoding every entry, loading the modded files, and writing the output.  Each 
+	 * stage is run a few times to warm up the JIT and then timed over a number of measured iterations, and the average, 
+	 * best and worst times are reported (with the throughput, for stages that move data).  If no bundle is given, a 
+	 * synthetic one (and a mod directory for it) is generated in a temporary directory, so results can be reproduced on 
+	 * any machine.
+	 */
+	private static class Benchmark {
+		private static interface Stage {
+			/**
+			 * Runs the stage once, and returns the number of bytes it processed (or 0 if that isn't meaningful).
+			 */
+			public long run() throws Exception;
+		}
+		
+		private final List<String> flags;
+		private final Metrics metrics;
+		private final int warmupIterations;
+		private final int iterations;
+		
+		public Benchmark(List<String> flags, Metrics metrics) {
+			this.flags = flags;
+			this.metrics = metrics;
+			String warmup = getOption(flags, "--warmup");
+			String iterations = getOption(flags, "--iterations");
+			this.warmupIterations = warmup == null ? 3 : Integer.parseInt(warmup);
+			this.iterations = iterations == null ? 5 : Integer.parseInt(iterations);
+		}
+		
+		public void run(String bundlePath, String modRoot) throws Exception {
+			final Path workDir = Files.createTempDirectory("bundle-benchmark");
+			try {
+				if (bundlePath == null) {
+					SyntheticBundle generator = new SyntheticBundle(flags);
+					bundlePath = workDir.resolve("synthetic.bundle").toString();
+					modRoot = workDir.resolve("mods").toString();
+					generator.generate(bundlePath, metrics);
+					generator.writeMods(modRoot);
+				}
+				
+				final String bundle = bundlePath;
+				final ModIndex modIndex = new ModIndex(modRoot);
+				final String output = workDir.resolve("output.bundle").toString();
+				System.out.println("Benchmarking '" + bundle + "' with mods from '" + modRoot + "'; " + warmupIterations + " warmup and " + iterations + " measured iterations per stage.");
+				
+				measure("open", new Stage() {
+					@Override
+					public long run() throws IOException {
+						try (BundleReader reader = new BundleReader(bundle, metrics)) {
+							return HEADER_SIZE + reader.getDataOffset();
+						}
+					}
+				});
+				
+				try (final BundleReader reader = new BundleReader(bundle, metrics)) {
+					final ByteBuffer descriptors = reader.getChannel().map(MapMode.READ_ONLY, HEADER_SIZE, reader.getDataOffset()).order(ByteOrder.LITTLE_ENDIAN);
+					measure("descriptors", new Stage() {
+						@Override
+						public long run() {
+							BundleReader.parseDescriptors(descriptors.duplicate().order(ByteOrder.LITTLE_ENDIAN), reader.getDataOffset());
+							return reader.getDataOffset();
+						}
+					});
+					
+					final ParallelDecoder decoder = new ParallelDecoder(metrics);
+					measure("decode", new Stage() {
+						@Override
+						public long run() throws IOException {
+							List<String> failures = decoder.decodeAll(reader, reader.getFiles(), null);
+							if (! failures.isEmpty()) {
+								throw new IOException(failures.size() + " files failed to decode; first failure:  " + failures.get(0));
+							}
+							long numBytes = 0;
+							for (BundleFile file : reader.getFiles()) {
+								numBytes += file.getUncompressedSize();
+							}
+							return numBytes;
+						}
+					});
+					decoder.shutdown();
+				}
+				
+				measure("override", new Stage() {
+					@Override
+					public long run() throws IOException {
+						try (BundleReader reader = new BundleReader(bundle, metrics)) {
+							long numBytes = 0;
+							for (Map.Entry<BundleFile, File> override : matchMods(reader.getFiles(), modIndex).entrySet()) {
+								if (overrideFile(override.getKey(), override.getValue(), false, metrics)) {
+									numBytes += override.getKey().getData().length;
+								}
+							}
+							return numBytes;
+						}
+					}
+				});
+				
+				measure("write", new Stage() {
+					@Override
+					public long run() throws Exception {
+						try (BundleReader reader = new BundleReader(bundle, metrics)) {
+							List<BundleFile> files = new ArrayList<>(reader.getFiles());
+							new PatchPipeline(reader, null, null, PatchPipeline.DEFAULT_WINDOW_SIZE, false, false, metrics).write(output, files, matchMods(files, modIndex), null);
+						}
+						return Files.size(Paths.get(output));
+					}
+				});
+			}
+			finally {
+				Files.walkFileTree(workDir, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+						Files.delete(file);
+						return FileVisitResult.CONTINUE;
+					}
+					
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+						Files.delete(dir);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		}
+		
+		private void measure(String name, Stage stage) throws Exception {
+			for (int i = 0; i < warmupIterations; i++) {
+				stage.run();
+			}
+			
+			long numBytes = 0;
+			long total = 0;
+			long best = Long.MAX_VALUE;
+			long worst = 0;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				numBytes = stage.run();
+				long elapsed = System.nanoTime() - start;
+				total += elapsed;
+				best = Math.min(best, elapsed);
+				worst = Math.max(worst, elapsed);
+			}
+			
+			double average = (double)total / Math.max(1, iterations);
+			String throughput = numBytes > 0 ? String.format(Locale.ROOT, "  %10.1f MB/s", numBytes / (average / 1e9) / (1024 * 1024)) : "";
+			System.out.println(String.format(Locale.ROOT, "BENCHMARK  %-12s avg=%10.3fms  min=%10.3fms  max=%10.3fms%s", name, average / 1e6, best / 1e6, worst / 1e6, throughput));
+		}
+	}
+	
+	/**
+	 * Computes the hash stored in a file descriptor from the entry's (decoded) content.  The game's hash scheme hasn't 
+	 * been identified yet, so the hashes of modified entries are normally left as they were; once it has, an 
+	 * implementation can be registered with Hashes and selected with '--hash=<name>' to have the hashes checked by the 
+	 * 'verify' command and recomputed when writing a bundle.  Implementations must be thread-safe.
+	 */
+	private static interface EntryHasher {
+		public String getName();
+		
+		/**
+		 * Returns the 16-byte hash of the first 'length' bytes of 'data'.
+		 */
+		public byte[] hash(byte[] data, int length);
+	}
+	
+	/**
+	 * The registry of known EntryHashers.  MD5 is included as a starting point for experiments, even though it doesn't 
+	 * match the hashes in the game's bundles.
+	 */
+	private static class Hashes {
+		private static final Map<String, EntryHasher> HASHERS = new ConcurrentHashMap<>();
+		
+		static {
+			register(new DigestHasher("md5", "MD5"));
+		}
+		
+		public static void register(EntryHasher hasher) {
+			HASHERS.put(hasher.getName().toLowerCase(), hasher);
+		}
+		
+		/**
+		 * Returns the hasher with the given name, or null if no name is given.
+		 */
+		public static EntryHasher get(String name) {
+			if (name == null || name.isEmpty()) {
+				return null;
+			}
+			EntryHasher hasher = HASHERS.get(name.toLowerCase());
+			if (hasher == null) {
+				throw new IllegalArgumentException("Unknown hash scheme '" + name + "'; known schemes are " + new TreeMap<>(HASHERS).keySet());
+			}
+			return hasher;
+		}
+	}
+	
+	private static class DigestHasher implements EntryHasher {
+		private final String name;
+		private final String algorithm;
+		
+		public DigestHasher(String name, String algorithm) {
+			this.name = name;
+			this.algorithm = algorithm;
+		}
+		
+		@Override
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public byte[] hash(byte[] data, int length) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance(algorithm);
+				digest.update(data, 0, length);
+				return Arrays.copyOf(digest.digest(), 16);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Hash algorithm " + algorithm + " isn't available", e);
+			}
+		}
+	}
+	
+	/**
+	 * Decodes entry data stored with one of the compression algorithms that can appear in a bundle descriptor.
+	 */
+	private static interface Codec {
+		/**
+		 * The value used for this codec in the 'compressionAlgo' field of a file descriptor.
+		 */
+		public int getId();
+		
+		public String getName();
+		
+		/**
+		 * Decodes 'source' into the start of 'target', and returns the number of bytes produced.  'target' must have room 
+		 * for at least 'uncompressedSize' bytes.
+		 */
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) throws IOException;
+	}
+	
+	/**
+	 * A codec that is also able to produce data in its format.
+	 */
+	private static interface CompressingCodec extends Codec {
+		/**
+		 * Compresses the first 'length' bytes of 'data'.
+		 */
+		public byte[] compress(byte[] data, int length);
+	}
+	
+	/**
+	 * Registry of the available codecs, keyed by compression algorithm id.  Additional codecs can be plugged in using 
+	 * 'register()'.
+	 */
+	private static class Codecs {
+		private static final Map<Integer, Codec> CODECS = new ConcurrentHashMap<>();
+		
+		static {
+			register(new StoredCodec());
+			register(new ZlibCodec());
+			register(new SnappyCodec());
+			register(new DobozCodec());
+			register(new Lz4Codec(4, "lz4"));
+			register(new Lz4Codec(5, "lz4hc"));		//LZ4HC only differs from LZ4 on the compression side; the block format is the same
+		}
+		
+		public static void register(Codec codec) {
+			CODECS.put(codec.getId(), codec);
+		}
+		
+		/**
+		 * Returns the codec for the given algorithm id, or null if it isn't supported.
+		 */
+		public static Codec get(int algo) {
+			return CODECS.get(algo);
+		}
+		
+		/**
+		 * Returns the compressing codec with the given name, or null if there isn't one.
+		 */
+		public static CompressingCodec getCompressor(String name) {
+			for (Codec codec : CODECS.values()) {
+				if (codec instanceof CompressingCodec && codec.getName().equalsIgnoreCase(name)) {
+					return (CompressingCodec)codec;
+				}
+			}
+			return null;
+		}
+		
+		public static String getName(int algo) {
+			Codec codec = get(algo);
+			return codec == null ? "unknown(" + algo + ")" : codec.getName();
+		}
+		
+		/**
+		 * Decodes the stored data of the given entry into 'target', and verifies that the result has the expected size.
+		 */
+		public static void decode(BundleFile file, ByteBuffer source, byte[] target) throws IOException {
+			Codec codec = get(file.getCompressionAlgo());
+			if (codec == null) {
+				throw new IOException("Unsupported compression algorithm " + file.getCompressionAlgo() + " for file " + file.getFilename());
+			}
+			
+			int numDecoded = codec.decompress(source.duplicate(), target, IOUtils.toArraySize(file.getUncompressedSize(), "uncompressed size of " + file.getFilename()));
+			if (numDecoded != file.getUncompressedSize()) {
+				throw new IOException("Decompressed size mismatch for file " + file.getFilename() + "; algo=" + codec.getName() + ", expectedSize=" + file.getUncompressedSize() + ", actualSize=" + numDecoded);
+			}
+		}
+		
+		private static IOException corrupt(String codec, String reason) {
+			return new IOException("Corrupt " + codec + " data:  " + reason);
+		}
+	}
+	
+	private static class StoredCodec implements Codec {
+		@Override
+		public int getId() {
+			return 0;
+		}
+
+		@Override
+		public String getName() {
+			return "none";
+		}
+
+		@Override
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) {
+			int length = Math.min(source.remaining(), uncompressedSize);
+			source.get(target, 0, length);
+			return length;
+		}
+	}
+	
+	private static class ZlibCodec implements CompressingCodec {
+		//Inflater instances hold native memory, so keep one per thread rather than creating one per entry
+		private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater();
+			}
+		};
+		private static final ThreadLocal<Inflater> RAW_INFLATERS = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+		private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.BEST_COMPRESSION);
+			}
+		};
+		
+		@Override
+		public int getId() {
+			return 1;
+		}
+
+		@Override
+		public String getName() {
+			return "zlib";
+		}
+
+		@Override
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) throws IOException {
+			//XXX:  Inflater only accepts heap arrays, so mapped data has to be copied in first
+			int length = source.remaining();
+			byte[] input = BufferPool.SHARED.acquire(length);
+			try {
+				source.get(input, 0, length);
+				try {
+					return inflate(INFLATERS.get(), input, length, target, uncompressedSize);
+				}
+				catch (DataFormatException e) {
+					//no zlib header; try again as a raw deflate stream
+					try {
+						return inflate(RAW_INFLATERS.get(), input, length, target, uncompressedSize);
+					}
+					catch (DataFormatException e2) {
+						throw Codecs.corrupt(getName(), e2.getMessage());
+					}
+				}
+			}
+			finally {
+				BufferPool.SHARED.release(input);
+			}
+		}
+		
+		@Override
+		public byte[] compress(byte[] data, int length) {
+			Deflater deflater = DEFLATERS.get();
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = BufferPool.SHARED.acquire(64 * 1024);
+			try {
+				while (! deflater.finished()) {
+					int numDeflated = deflater.deflate(buffer);
+					out.write(buffer, 0, numDeflated);
+				}
+			}
+			finally {
+				BufferPool.SHARED.release(buffer);
+			}
+			
+			return out.toByteArray();
+		}
+		
+		private static int inflate(Inflater inflater, byte[] input, int length, byte[] target, int uncompressedSize) throws DataFormatException {
+			inflater.reset();
+			inflater.setInput(input, 0, length);
+			int numRead = 0;
+			while (numRead < uncompressedSize && ! inflater.finished()) {
+				int numInflated = inflater.inflate(target, numRead, uncompressedSize - numRead);
+				if (numInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				numRead += numInflated;
+			}
+			
+			return numRead;
+		}
+	}
+	
+	/**
+	 * Decoder for the raw (unframed) Snappy format.
+	 */
+	private static class SnappyCodec implements Codec {
+		@Override
+		public int getId() {
+			return 2;
+		}
+
+		@Override
+		public String getName() {
+			return "snappy";
+		}
+
+		@Override
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) throws IOException {
+			//the preamble holds the uncompressed length as a varint
+			long declaredSize = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (! source.hasRemaining() || shift > 28) {
+					throw Codecs.corrupt(getName(), "bad length preamble");
+				}
+				int next = source.get() & 0xFF;
+				declaredSize |= (long)(next & 0x7F) << shift;
+				if ((next & 0x80) == 0) {
+					break;
+				}
+			}
+			if (declaredSize > uncompressedSize) {
+				throw Codecs.corrupt(getName(), "declared size " + declaredSize + " exceeds the expected size " + uncompressedSize);
+			}
+			
+			int outEnd = (int)declaredSize;
+			int outPos = 0;
+			while (source.hasRemaining() && outPos < outEnd) {
+				int tag = source.get() & 0xFF;
+				int length;
+				int offset;
+				switch (tag & 3) {
+					case 0:
+						//literal
+						length = tag >>> 2;
+						if (length >= 60) {
+							int numBytes = length - 59;
+							length = (int)readLittleEndian(source, numBytes);
+						}
+						length++;
+						if (length > source.remaining() || length > outEnd - outPos) {
+							throw Codecs.corrupt(getName(), "literal overruns its buffer");
+						}
+						source.get(target, outPos, length);
+						outPos += length;
+						continue;
+					case 1:
+						length = ((tag >>> 2) & 7) + 4;
+						offset = ((tag >>> 5) << 8) | (int)readLittleEndian(source, 1);
+						break;
+					case 2:
+						length = (tag >>> 2) + 1;
+						offset = (int)readLittleEndian(source, 2);
+						break;
+					default:
+						length = (tag >>> 2) + 1;
+						offset = (int)readLittleEndian(source, 4);
+						break;
+				}
+				
+				outPos = copyMatch(getName(), target, outPos, offset, length, outEnd);
+			}
+			
+			return outPos;
+		}
+	}
+	
+	/**
+	 * Decoder for the LZ4 block format (as produced by both the regular and the high-compression LZ4 encoders).
+	 */
+	private static class Lz4Codec implements CompressingCodec {
+		private static final int MIN_MATCH = 4;
+		private static final int MATCH_SEARCH_LIMIT = 12;		//a match can't start within the last 12 bytes of the input...
+		private static final int LAST_LITERALS = 5;				//...and the last 5 bytes must always be literals
+		private static final int MAX_OFFSET = 65535;
+		private static final int HASH_BITS = 16;
+		
+		private static final ThreadLocal<int[]> HASH_TABLES = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1 << HASH_BITS];
+			}
+		};
+		
+		private final int id;
+		private final String name;
+		
+		public Lz4Codec(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+		
+		@Override
+		public int getId() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) throws IOException {
+			int outPos = 0;
+			while (source.hasRemaining()) {
+				int token = source.get() & 0xFF;
+				
+				//literals
+				int length = readLength(source, token >>> 4);
+				if (length > source.remaining() || length > uncompressedSize - outPos) {
+					throw Codecs.corrupt(name, "literal overruns its buffer");
+				}
+				source.get(target, outPos, length);
+				outPos += length;
+				
+				if (! source.hasRemaining()) {
+					//the last sequence only holds literals
+					break;
+				}
+				
+				//match
+				int offset = (int)readLittleEndian(source, 2);
+				length = readLength(source, token & 0x0F) + 4;
+				outPos = copyMatch(name, target, outPos, offset, length, uncompressedSize);
+			}
+			
+			return outPos;
+		}
+		
+		/**
+		 * Greedy single-probe LZ4 block compressor; not as thorough as LZ4HC, but any LZ4 decoder can read its output.
+		 */
+		@Override
+		public byte[] compress(byte[] data, int length) {
+			byte[] out = new byte[length + length / 255 + 16];
+			int outPos = 0;
+			int anchor = 0;
+			
+			if (length > MATCH_SEARCH_LIMIT) {
+				int[] table = HASH_TABLES.get();
+				Arrays.fill(table, -1);
+				
+				int searchLimit = length - MATCH_SEARCH_LIMIT;
+				int matchLimit = length - LAST_LITERALS;
+				int position = 0;
+				while (position < searchLimit) {
+					int sequence = readInt(data, position);
+					int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+					int reference = table[hash];
+					table[hash] = position;
+					
+					if (reference < 0 || position - reference > MAX_OFFSET || readInt(data, reference) != sequence) {
+						position++;
+						continue;
+					}
+					
+					int matchLength = MIN_MATCH;
+					while (position + matchLength < matchLimit && data[reference + matchLength] == data[position + matchLength]) {
+						matchLength++;
+					}
+					
+					outPos = writeSequence(data, anchor, position - anchor, out, outPos, position - reference, matchLength);
+					position += matchLength;
+					anchor = position;
+				}
+			}
+			
+			outPos = writeSequence(data, anchor, length - anchor, out, outPos, 0, 0);
+			return Arrays.copyOf(out, outPos);
+		}
+		
+		private static int writeSequence(byte[] data, int literalStart, int literalLength, byte[] out, int outPos, int offset, int matchLength) {
+			int tokenPos = outPos++;
+			int token = Math.min(literalLength, 15) << 4;
+			outPos = writeLength(out, outPos, literalLength - 15);
+			System.arraycopy(data, literalStart, out, outPos, literalLength);
+			outPos += literalLength;
+			
+			if (matchLength > 0) {
+				out[outPos++] = (byte)offset;
+				out[outPos++] = (byte)(offset >>> 8);
+				token |= Math.min(matchLength - MIN_MATCH, 15);
+				outPos = writeLength(out, outPos, matchLength - MIN_MATCH - 15);
+			}
+			
+			out[tokenPos] = (byte)token;
+			return outPos;
+		}
+		
+		private static int writeLength(byte[] out, int outPos, int remainder) {
+			if (remainder < 0) {
+				return outPos;
+			}
+			while (remainder >= 255) {
+				out[outPos++] = (byte)255;
+				remainder -= 255;
+			}
+			out[outPos++] = (byte)remainder;
+			return outPos;
+		}
+		
+		private static int readInt(byte[] data, int position) {
+			return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8) | ((data[position + 2] & 0xFF) << 16) | ((data[position + 3] & 0xFF) << 24);
+		}
+		
+		private int readLength(ByteBuffer source, int length) throws IOException {
+			if (length == 15) {
+				int next;
+				do {
+					if (! source.hasRemaining()) {
+						throw Codecs.corrupt(name, "truncated length");
+					}
+					next = source.get() & 0xFF;
+					length += next;
+				} while (next == 255);
+			}
+			return length;
+		}
+	}
+	
+	/**
+	 * Decoder for the Doboz format, following the reference implementation.  Compressed data starts with a small header 
+	 * (attributes byte followed by the uncompressed and compressed sizes), and is then a series of literals and matches 
+	 * selected by the bits of 32-bit control words.
+	 */
+	private static class DobozCodec implements Codec {
+		private static final int MIN_MATCH_LENGTH = 3;
+		
+		//per match-encoding: {mask, offsetShift, lengthMask, lengthShift, size}; indexed by the low 3 bits of the match word
+		private static final long[][] MATCH_LUT = {
+			{0xFFL, 2, 0, 0, 1},
+			{0xFFFFL, 2, 0, 0, 2},
+			{0xFFFFL, 6, 15, 2, 2},
+			{0xFFFFFFL, 8, 31, 3, 3},
+			{0xFFL, 2, 0, 0, 1},
+			{0xFFFFL, 2, 0, 0, 2},
+			{0xFFFFL, 6, 15, 2, 2},
+			{0xFFFFFFFFL, 11, 255, 3, 4},
+		};
+		
+		@Override
+		public int getId() {
+			return 3;
+		}
+
+		@Override
+		public String getName() {
+			return "doboz";
+		}
+
+		@Override
+		public int decompress(ByteBuffer source, byte[] target, int uncompressedSize) throws IOException {
+			//decode the header
+			int attributes = source.get() & 0xFF;
+			if ((attributes & 7) != 0) {
+				throw Codecs.corrupt(getName(), "unsupported version " + (attributes & 7));
+			}
+			int sizeCodedSize = ((attributes >>> 3) & 7) + 1;
+			long declaredSize = readLittleEndian(source, sizeCodedSize);
+			readLittleEndian(source, sizeCodedSize);		//compressed size
+			if (declaredSize > uncompressedSize) {
+				throw Codecs.corrupt(getName(), "declared size " + declaredSize + " exceeds the expected size " + uncompressedSize);
+			}
+			
+			int outEnd = (int)declaredSize;
+			if ((attributes & 0x80) != 0) {
+				//stored without compression
+				if (source.remaining() < outEnd) {
+					throw Codecs.corrupt(getName(), "truncated stored data");
+				}
+				source.get(target, 0, outEnd);
+				return outEnd;
+			}
+			
+			int outPos = 0;
+			int controlWord = 1;
+			while (outPos < outEnd) {
+				if (controlWord == 1) {
+					//only the sentinel bit is left; load the next control word
+					controlWord = (int)readLittleEndian(source, 4);
+				}
+				
+				if ((controlWord & 1) == 0) {
+					//literal
+					if (! source.hasRemaining()) {
+						throw Codecs.corrupt(getName(), "truncated literal");
+					}
+					target[outPos++] = source.get();
+				}
+				else {
+					//match; the encoding is selected by the low bits of the next (up to) 4 bytes
+					long word = peekLittleEndian(source);
+					long[] encoding = MATCH_LUT[(int)(word & 7)];
+					word &= encoding[0];
+					int offset = (int)(word >>> encoding[1]);
+					int length = (int)((word >>> encoding[3]) & encoding[2]) + MIN_MATCH_LENGTH;
+					source.position(source.position() + (int)encoding[4]);
+					
+					outPos = copyMatch(getName(), target, outPos, offset, length, outEnd);
+				}
+				controlWord >>>= 1;
+			}
+			
+			return outPos;
+		}
+		
+		private static long peekLittleEndian(ByteBuffer source) {
+			long value = 0;
+			int available = Math.min(4, source.remaining());
+			for (int index = 0; index < available; index++) {
+				value |= (long)(source.get(source.position() + index) & 0xFF) << (index * 8);
+			}
+			return value;
+		}
+	}
+	
+	private static long readLittleEndian(ByteBuffer source, int numBytes) throws IOException {
+		if (source.remaining() < numBytes) {
+			throw new IOException("Corrupt compressed data:  unexpected end of input");
+		}
+		long value = 0;
+		for (int index = 0; index < numBytes; index++) {
+			value |= (long)(source.get() & 0xFF) << (index * 8);
+		}
+		return value;
+	}
+	
+	/**
+	 * Copies an LZ-style back-reference within 'target', and returns the new output position.  Copies byte by byte, since 
+	 * matches are allowed to overlap the data they produce.
+	 */
+	private static int copyMatch(String codec, byte[] target, int outPos, int offset, int length, int outEnd) throws IOException {
+		if (offset <= 0 || offset > outPos) {
+			throw Codecs.corrupt(codec, "match offset " + offset + " is outside of the decoded data (position " + outPos + ")");
+		}
+		if (length > outEnd - outPos) {
+			throw Codecs.corrupt(codec, "match overruns the output buffer");
+		}
+		
+		int from = outPos - offset;
+		for (int index = 0; index < length; index++) {
+			target[outPos++] = target[from++];
+		}
+		return outPos;
+	}
+	
+	/**
+	 * Compresses modified entries in parallel before they're written.  The codec to use is chosen by file extension, and 
+	 * the compressed form of an entry is only kept if it's actually smaller than the uncompressed data.
+	 */
+	private static class CompressionStage {
+		private static final String DEFAULT_CODEC = "lz4";
+		
+		private final Map<String, CompressingCodec> codecsByExtension = new HashMap<>();
+		private CompressingCodec defaultCodec;
+		private final ForkJoinPool pool = new ForkJoinPool();
+		
+		/**
+		 * Parses a spec like 'xml:zlib,dds:none,lz4', where each entry maps a file extension to a codec, and an entry with 
+		 * no extension sets the codec used for everything else.  An empty spec compresses everything with LZ4.
+		 */
+		public CompressionStage(String spec) {
+			this.defaultCodec = Codecs.getCompressor(DEFAULT_CODEC);
+			for (String entry : spec.split(",")) {
+				entry = entry.trim();
+				if (entry.isEmpty()) {
+					continue;
+				}
+				
+				int separator = entry.lastIndexOf(':');
+				String codecName = entry.substring(separator + 1);
+				CompressingCodec codec = Codecs.getCompressor(codecName);
+				if (codec == null && ! "none".equalsIgnoreCase(codecName)) {
+					throw new IllegalArgumentException("Unsupported compression codec '" + codecName + "' in '" + spec + "'");
+				}
+				
+				if (separator < 0) {
+					this.defaultCodec = codec;
+				}
+				else {
+					String extension = entry.substring(0, separator).toLowerCase();
+					codecsByExtension.put(extension.startsWith(".") ? extension.substring(1) : extension, codec);
+				}
+			}
+		}
+		
+		/**
+		 * Returns the codec to compress the given file with, or null if it should be stored uncompressed.
+		 */
+		public CompressingCodec getCodec(String filename) {
+			int dot = filename.lastIndexOf('.');
+			String extension = dot < 0 ? "" : filename.substring(dot + 1).toLowerCase();
+			return codecsByExtension.containsKey(extension) ? codecsByExtension.get(extension) : defaultCodec;
+		}
+		
+		public void compressAll(List<BundleFile> files) throws InterruptedException, ExecutionException {
+			List<Callable<Boolean>> tasks = new ArrayList<>();
+			for (final BundleFile file : files) {
+				tasks.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return compress(file);
+					}
+				});
+			}
+			
+			long originalBytes = 0;
+			long storedBytes = 0;
+			int numCompressed = 0;
+			List<Future<Boolean>> results = pool.invokeAll(tasks);
+			for (int index = 0; index < files.size(); index++) {
+				if (results.get(index).get()) {
+					numCompressed++;
+				}
+				originalBytes += files.get(index).getUncompressedSize();
+				storedBytes += files.get(index).getCompressedSize();
+			}
+			
+			System.out.println("Compressed " + numCompressed + " / " + files.size() + " modified files; " + originalBytes + " bytes stored as " + storedBytes + " bytes.");
+		}
+		
+		/**
+		 * Queues a single (modified) file to be hashed (if a hasher is given) and compressed on the worker pool.
+		 */
+		public Future<Boolean> submit(final BundleFile file, final EntryHasher hasher) {
+			return pool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					if (hasher != null) {
+						file.setHash(hasher.hash(file.getData(), file.getData().length));
+					}
+					return compress(file);
+				}
+			});
+		}
+		
+		/**
+		 * Compresses a single (modified) file, and returns true if the compressed form was kept.
+		 */
+		public boolean compress(BundleFile file) {
+			CompressingCodec codec = this.getCodec(file.getFilename());
+			if (codec == null || file.getCompressionAlgo() != 0 || file.getData() == null) {
+				return false;
+			}
+			
+			byte[] compressed = codec.compress(file.getData(), file.getData().length);
+			if (compressed.length >= file.getData().length) {
+				return false;
+			}
+			
+			file.setCompressedData(compressed, codec.getId());
+			return true;
+		}
+		
+		public void shutdown() {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Pool of reusable byte arrays, bucketed by power-of-two size, so that decoding lots of entries doesn't mean 
+	 * allocating (and zeroing) a fresh buffer for each one.
+	 */
+	private static class BufferPool {
+		public static final BufferPool SHARED = new BufferPool(256L * 1024 * 1024);
+		
+		private static final int MIN_BUCKET = 12;		//4KB
+		private static final int MAX_BUCKET = 30;		//1GB; anything larger is allocated exactly and never pooled
+		
+		private final List<ConcurrentLinkedQueue<byte[]>> buckets = new ArrayList<>();
+		private final AtomicLong pooledBytes = new AtomicLong();
+		private final long maxPooledBytes;
+		
+		public BufferPool(long maxPooledBytes) {
+			this.maxPooledBytes = maxPooledBytes;
+			for (int bucket = 0; bucket <= MAX_BUCKET; bucket++) {
+				buckets.add(new ConcurrentLinkedQueue<byte[]>());
+			}
+		}
+		
+		/**
+		 * Returns a buffer of at least 'minSize' bytes.  The contents of the buffer are undefined.
+		 */
+		public byte[] acquire(int minSize) {
+			int bucket = Math.max(MIN_BUCKET, 32 - Integer.numberOfLeadingZeros(Math.max(minSize, 1) - 1));
+			if (bucket > MAX_BUCKET) {
+				return new byte[minSize];
+			}
+			
+			byte[] buffer = buckets.get(bucket).poll();
+			if (buffer == null) {
+				return new byte[1 << bucket];
+			}
+			pooledBytes.addAndGet(-buffer.length);
+			return buffer;
+		}
+		
+		public void release(byte[] buffer) {
+			int bucket = 31 - Integer.numberOfLeadingZeros(buffer.length);
+			if (buffer.length != 1 << bucket || bucket < MIN_BUCKET || bucket > MAX_BUCKET) {
+				return;
+			}
+			if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+				//pool is full; let this one be garbage collected
+				pooledBytes.addAndGet(-buffer.length);
+				return;
+			}
+			buckets.get(bucket).offer(buffer);
+		}
+	}
+	
+	/**
+	 * Decodes bundle entries in parallel on a ForkJoinPool, handing each decoded entry to an EntryHandler.  Decode 
+	 * buffers come from a BufferPool and are only valid for the duration of the 'handle' call.
+	 */
+	private static class ParallelDecoder {
+		public static interface EntryHandler {
+			public void handle(BundleFile file, byte[] data, int length) throws IOException;
+		}
+		
+		private final ForkJoinPool pool;
+		private final BufferPool buffers;
+		private final Metrics metrics;
+		
+		public ParallelDecoder(Metrics metrics) {
+			this(new ForkJoinPool(), BufferPool.SHARED, metrics);
+		}
+		
+		public ParallelDecoder(ForkJoinPool pool, BufferPool buffers, Metrics metrics) {
+			this.pool = pool;
+			this.buffers = buffers;
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * Decodes the given entries (passing them to 'handler', if it's not null), and returns an error message for each 
+		 * entry that couldn't be decoded.
+		 */
+		public List<String> decodeAll(BundleReader reader, List<BundleFile> files, EntryHandler handler) {
+			ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+			if (! files.isEmpty()) {
+				pool.invoke(new DecodeTask(reader, files, 0, files.size(), handler, failures));
+			}
+			return new ArrayList<>(failures);
+		}
+		
+		public void shutdown() {
+			pool.shutdown();
+		}
+		
+		private class DecodeTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			
+			private final BundleReader reader;
+			private final List<BundleFile> files;
+			private final int start;
+			private final int end;
+			private final EntryHandler handler;
+			private final Queue<String> failures;
+			
+			public DecodeTask(BundleReader reader, List<BundleFile> files, int start, int end, EntryHandler handler, Queue<String> failures) {
+				this.reader = reader;
+				this.files = files;
+				this.start = start;
+				this.end = end;
+				this.handler = handler;
+				this.failures = failures;
+			}
+
+			@Override
+			protected void compute() {
+				if (end - start > 1) {
+					int middle = (start + end) >>> 1;
+					invokeAll(new DecodeTask(reader, files, start, middle, handler, failures), new DecodeTask(reader, files, middle, end, handler, failures));
+					return;
+				}
+				
+				BundleFile file = files.get(start);
+				byte[] buffer = null;
+				try {
+					buffer = buffers.acquire(IOUtils.toArraySize(file.getUncompressedSize(), "uncompressed size of " + file.getFilename()));
+					Codecs.decode(file, reader.getRawData(file), buffer);
+					metrics.addDecoded(file);
+					if (handler != null) {
+						handler.handle(file, buffer, (int)file.getUncompressedSize());
+					}
+				}
+				catch (IOException | RuntimeException e) {
+					failures.add(file.getFilename() + ":  " + e.getMessage());
+				}
+				finally {
+					if (buffer != null) {
+						buffers.release(buffer);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Primitive I/O helpers.  Bundle data is read from and written to little-endian ByteBuffers (which map onto the 
+	 * input file, or get flushed to an output channel in bulk), rather than being pushed through streams a byte at a time.
+	 */
+	private static class IOUtils {
+		private static final int DEFAULT_STRING_LENGTH = 0x100;
+		private static final byte[] ZEROS = new byte[DEFAULT_STRING_LENGTH];
+		
+		/**
+		 * Reads an entire (mod) file into memory.
+		 */
+		public static byte[] readFile(File file, Metrics metrics) throws IOException {
+			try (FileInputStream in = new FileInputStream(file)) {
+				FileChannel channel = in.getChannel();
+				ByteBuffer data = ByteBuffer.allocate(toArraySize(channel.size(), "file " + file.getAbsolutePath()));		//XXX:  2GB maximum, since the data needs to fit in an array
+				while (data.hasRemaining()) {
+					if (channel.read(data) < 0) {
+						throw new IOException("Unexpected end of file while reading " + file.getAbsolutePath() + "; lookingFor=" + data.capacity() + ", totalFound=" + data.position());
+					}
+				}
+				metrics.addRead(data.capacity());
+				return data.array();
+			}
+		}
+		
+		public static String readFixedLengthString(ByteBuffer in, int stringLength) {
+			return readFixedLengthString(in, stringLength, new char[stringLength]);
+		}
+		
+		/**
+		 * Reads a NUL-padded string of 'stringLength' bytes, using 'scratch' (which must be at least 'stringLength' long) 
+		 * to build it; only the resulting String is allocated.
+		 */
+		public static String readFixedLengthString(ByteBuffer in, int stringLength, char[] scratch) {
+			int start = in.position();
+			int length = 0;
+			while (length < stringLength) {
+				byte next = in.get(start + length);
+				if (next == 0) {
+					break;
+				}
+				scratch[length++] = (char)(next & 0xFF);
+			}
+			
+			in.position(start + stringLength);		//skip the padding, rather than reading it
+			return new String(scratch, 0, length);
+		}
+		
+		/**
+		 * Reads a little-endian 32-bit value as unsigned.
+		 */
+		public static long getUInt32(ByteBuffer in) {
+			return in.getInt() & 0xFFFFFFFFL;
+		}
+		
+		/**
+		 * Narrows a size or offset to the (unsigned) 32-bit representation used by the bundle format, failing rather 
+		 * than letting an out-of-range value wrap around.
+		 */
+		public static int toUInt32(long value, String description) throws IOException {
+			if (value < 0 || value > 0xFFFFFFFFL) {
+				throw new IOException("The " + description + " (" + value + ") does not fit in the bundle format's 32-bit field");
+			}
+			return (int)value;
+		}
+		
+		/**
+		 * Narrows a size to an int, for data that has to be held in a single array or buffer.
+		 */
+		public static int toArraySize(long size, String description) throws IOException {
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				throw new IOException("The " + description + " (" + size + " bytes) is too large to be loaded into memory (2GB maximum)");
+			}
+			return (int)size;
+		}
+		
+		public static void putUInt32(ByteBuffer out, long number, String description) throws IOException {
+			out.putInt(toUInt32(number, description));
+		}
+		
+		public static void putZeros(ByteBuffer out, int numBytes) {
+			while (numBytes > 0) {
+				int numToPut = Math.min(numBytes, ZEROS.length);
+				out.put(ZEROS, 0, numToPut);
+				numBytes -= numToPut;
+			}
+		}
+		
+		public static void putFixedLengthString(ByteBuffer out, String text, int stringLength) {
+			byte[] data = text.getBytes(StandardCharsets.ISO_8859_1);
+			if (data.length >= stringLength) {
+				System.out.println("WARN:  Payload data exceeds maximum size of a fixed-length string, it will be truncated; text=" + text);
+			}
+			
+			int numToCopy = data.length < stringLength ? data.length : stringLength - 1;
+			out.put(data, 0, numToCopy);
+			putZeros(out, stringLength - numToCopy);
+		}
+		
+		public static void writeFully(WritableByteChannel out, ByteBuffer data, Metrics metrics) throws IOException {
+			metrics.addWritten(data.remaining());
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+		}
+		
+		public static void writeFully(FileChannel out, ByteBuffer data, long position, Metrics metrics) throws IOException {
+			metrics.addWritten(data.remaining());
+			while (data.hasRemaining()) {
+				position += out.write(data, position);
+			}
+		}
+		
+		/**
+		 * Writes 'paddingLength' zero bytes, from a single shared buffer.
+		 */
+		public static void writePadding(WritableByteChannel out, long paddingLength, Metrics metrics) throws IOException {
+			while (paddingLength > 0) {
+				ByteBuffer padding = ZERO_PADDING.duplicate();
+				padding.limit((int)Math.min(paddingLength, padding.capacity()));
+				paddingLength -= padding.remaining();
+				writeFully(out, padding, metrics);
+			}
+		}
+		
+		/**
+		 * Copies a range of one file to a channel, letting the OS move the data directly where it can.
+		 */
+		public static void transferFully(FileChannel in, long position, long length, WritableByteChannel out, Metrics metrics) throws IOException {
+			long numTransferred = 0;
+			while (numTransferred < length) {
+				long numMoved = in.transferTo(position + numTransferred, length - numTransferred, out);
+				if (numMoved <= 0) {
+					throw new IOException("Unexpected end of input while copying bundle data; position=" + (position + numTransferred) + ", remaining=" + (length - numTransferred));
+				}
+				numTransferred += numMoved;
+			}
+			metrics.addRead(length);
+			metrics.addWritten(length);
+		}
+		
+		private static final ByteBuffer ZERO_PADDING = ByteBuffer.allocateDirect(ALIGNMENT_TARGET).asReadOnlyBuffer();		//shared source of alignment padding; never written to, so safe to share
 	}
 	
 	private static class BundleFileOffsetCompare implements Comparator<BundleFile> {
 		@Override
 		public int compare(BundleFile left, BundleFile right) {
-			return ((Integer)left.getOffset(0)).compareTo(right.getOffset(0));
+			return Long.compare(left.getOffset(), right.getOffset());
 		}
 		
 	}
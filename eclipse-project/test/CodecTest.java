@@ -0,0 +1,151 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round-trips generated content through every compressing codec, decodes hand-built streams for the codecs that we
+ * can only decode, and checks that a patched bundle gives back exactly the modded files with each codec.
+ */
+public class CodecTest {
+	private static final int[] SIZES = {1, 4, 12, 13, 17, 255, 4096, 65536 + 123, 300000};
+	
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+	
+	@Test
+	public void compressingCodecsRoundTripGeneratedContent() throws Exception {
+		for (String name : new String[] {"zlib", "lz4", "lz4hc"}) {
+			Object codec = Internals.callStatic("Codecs", "getCompressor", name);
+			for (int seed = 0; seed < 4; seed++) {
+				for (int size : SIZES) {
+					byte[] data = seed == 3 ? randomBytes(seed, size) : (byte[])Internals.callStatic("SyntheticBundle", "getContent", new Random(seed), size);
+					byte[] compressed = (byte[])Internals.call(codec, "compress", data, size);
+					assertArrayEquals(name + ", seed=" + seed + ", size=" + size, data, decompress(codec, compressed, size));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void compressingCodecsOnlyReadTheGivenLength() throws Exception {
+		byte[] data = (byte[])Internals.callStatic("SyntheticBundle", "getContent", new Random(70), 10000);
+		byte[] padded = Arrays.copyOf(data, data.length + 5000);
+		Arrays.fill(padded, data.length, padded.length, (byte)'x');
+		for (String name : new String[] {"zlib", "lz4", "lz4hc"}) {
+			Object codec = Internals.callStatic("Codecs", "getCompressor", name);
+			byte[] compressed = (byte[])Internals.call(codec, "compress", padded, data.length);
+			assertArrayEquals(name, data, decompress(codec, compressed, data.length));
+		}
+	}
+	
+	@Test
+	public void zlibDecodesDeflaterOutput() throws Exception {
+		byte[] data = (byte[])Internals.callStatic("SyntheticBundle", "getContent", new Random(7), 50000);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] buffer = new byte[data.length + 1024];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+		
+		assertArrayEquals(data, decompress(Internals.callStatic("Codecs", "get", 1), Arrays.copyOf(buffer, length), data.length));
+	}
+	
+	@Test
+	public void decodesReferenceStreams() throws Exception {
+		//a literal run, then a match that overlaps its own output
+		byte[] snappy = {12, 3 << 2, 'a', 'b', 'c', 'd', (4 << 2) | 1, 4};
+		assertEquals("abcdabcdabcd", decode(2, snappy, 12));
+		
+		//two sequences; the last one only holds literals
+		byte[] lz4 = {0x48, 'a', 'b', 'c', 'd', 4, 0, 0x50, 'h', 'e', 'l', 'l', 'o'};
+		assertEquals("abcdabcdabcdabcdhello", decode(4, lz4, 21));
+		assertEquals("abcdabcdabcdabcdhello", decode(5, lz4, 21));
+		
+		//three literals and a 2-byte match (offset 3, length 6), under one control word
+		byte[] doboz = {0, 9, 12, 0x18, 0, 0, 0, 'a', 'b', 'c', (byte)((3 << 6) | (3 << 2) | 2), 0};
+		assertEquals("abcabcabc", decode(3, doboz, 9));
+		byte[] dobozStored = {(byte)0x80, 5, 5, 'h', 'e', 'l', 'l', 'o'};
+		assertEquals("hello", decode(3, dobozStored, 5));
+		
+		assertEquals("stored", decode(0, "stored".getBytes(StandardCharsets.US_ASCII), 6));
+	}
+	
+	@Test
+	public void rejectsMatchesBeforeTheStartOfTheOutput() throws Exception {
+		assertCorrupt(2, new byte[] {8, (4 << 2) | 1, 2}, 8);
+		assertCorrupt(4, new byte[] {0x10, 'a', 5, 0}, 8);
+		assertCorrupt(3, new byte[] {0, 9, 12, 3, 0, 0, 0, (byte)((3 << 6) | (3 << 2) | 2), 0}, 9);
+	}
+	
+	@Test
+	public void rejectsOutputLargerThanExpected() throws Exception {
+		assertCorrupt(2, new byte[] {12, 3 << 2, 'a', 'b', 'c', 'd', (4 << 2) | 1, 4}, 8);
+		assertCorrupt(4, new byte[] {0x48, 'a', 'b', 'c', 'd', 4, 0, 0x50, 'h', 'e', 'l', 'l', 'o'}, 16);
+	}
+	
+	@Test
+	public void patchedEntriesExtractUnchanged() throws Exception {
+		String bundle = new File(temp.getRoot(), "in.bundle").getPath();
+		String mods = new File(temp.getRoot(), "mods").getPath();
+		Internals.run("generate", bundle, mods, "--entries=120", "--sizes=1-96", "--modded=30", "--seed=16");
+		
+		for (String spec : new String[] {"none", "zlib", "lz4", "lz4hc", "xml:zlib,csv:none,lz4hc"}) {
+			String output = new File(temp.getRoot(), spec.replaceAll("[^a-z0-9]", "_") + ".bundle").getPath();
+			Path extracted = new File(temp.getRoot(), "extracted_" + spec.replaceAll("[^a-z0-9]", "_")).toPath();
+			Internals.run(bundle, output, mods, "--compress=" + spec);
+			assertTrue(spec, Internals.run("verify", output).contains("All 1 bundles are intact."));
+			Internals.run("extract", output, extracted.toString());
+			
+			List<Path> modFiles = Internals.listFiles(new File(mods).toPath());
+			assertEquals(30, modFiles.size());
+			for (Path modFile : modFiles) {
+				Path relative = new File(mods).toPath().relativize(modFile);
+				assertArrayEquals(spec + ":  " + relative, Files.readAllBytes(modFile), Files.readAllBytes(extracted.resolve(relative)));
+			}
+		}
+	}
+	
+	private static byte[] randomBytes(long seed, int size) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+	
+	private static byte[] decompress(Object codec, byte[] compressed, int size) throws Exception {
+		byte[] target = new byte[size];
+		int length = (Integer)Internals.call(codec, "decompress", ByteBuffer.wrap(compressed), target, size);
+		assertEquals(size, length);
+		return target;
+	}
+	
+	private static String decode(int algo, byte[] compressed, int size) throws Exception {
+		return new String(decompress(Internals.callStatic("Codecs", "get", algo), compressed, size), StandardCharsets.US_ASCII);
+	}
+	
+	private static void assertCorrupt(int algo, byte[] compressed, int size) throws Exception {
+		try {
+			Internals.call(Internals.callStatic("Codecs", "get", algo), "decompress", ByteBuffer.wrap(compressed), new byte[size], size);
+			fail("Corrupt " + algo + " data was decoded");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt "));
+		}
+	}
+}
@@ -0,0 +1,192 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that deltas between generated entries rebuild the new data exactly (and stay small when the edit is small),
+ * and that a delta package turns the original bundle into the modified one.
+ */
+public class DeltaEncoderTest {
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+	
+	@Test
+	public void roundTripsGeneratedEdits() throws Exception {
+		for (int seed = 0; seed < 8; seed++) {
+			Random random = new Random(seed);
+			byte[] original = content(seed, 1000 + random.nextInt(200000));
+			int at = random.nextInt(original.length);
+			int length = 1 + random.nextInt(Math.min(5000, original.length - at));
+			byte[] insert = content(~seed, 1 + random.nextInt(5000));
+			
+			assertRoundTrip(original, original);
+			assertRoundTrip(original, concat(Arrays.copyOf(original, at), insert, Arrays.copyOfRange(original, at, original.length)));
+			assertRoundTrip(original, concat(Arrays.copyOf(original, at), Arrays.copyOfRange(original, at + length, original.length)));
+			assertRoundTrip(original, concat(Arrays.copyOf(original, at), insert, Arrays.copyOfRange(original, at + length, original.length)));
+			assertRoundTrip(original, concat(insert, original, insert));
+			assertRoundTrip(original, concat(Arrays.copyOfRange(original, at, original.length), Arrays.copyOf(original, at)));
+			assertRoundTrip(original, content(seed + 100, original.length));
+		}
+	}
+	
+	@Test
+	public void roundTripsShortAndEmptyData() throws Exception {
+		byte[] data = content(3, 5000);
+		assertRoundTrip(new byte[0], data);
+		assertRoundTrip(data, new byte[0]);
+		assertRoundTrip(new byte[0], new byte[0]);
+		assertRoundTrip(Arrays.copyOf(data, 15), Arrays.copyOf(data, 16));
+		assertRoundTrip(Arrays.copyOf(data, 16), Arrays.copyOf(data, 15));
+		assertRoundTrip(data, Arrays.copyOf(data, 1));
+	}
+	
+	@Test
+	public void smallEditsGiveSmallDeltas() throws Exception {
+		byte[] original = content(9, 200000);
+		byte[] modified = original.clone();
+		for (int position = 1000; position < modified.length; position += 20000) {
+			modified[position] ^= 0x20;
+		}
+		byte[] delta = assertRoundTrip(original, modified);
+		assertTrue("delta is " + delta.length + " bytes", delta.length < 1000);
+	}
+	
+	@Test
+	public void usesOnlyTheRemainingBytesOfEachBuffer() throws Exception {
+		byte[] original = content(4, 50000);
+		byte[] modified = concat(Arrays.copyOf(original, 20000), content(5, 300), Arrays.copyOfRange(original, 20000, original.length));
+		ByteBuffer oldData = ByteBuffer.wrap(concat(content(6, 777), original));
+		oldData.position(777);
+		ByteBuffer newData = ByteBuffer.wrap(concat(content(7, 333), modified));
+		newData.position(333);
+		
+		byte[] delta = (byte[])Internals.callStatic("DeltaEncoder", "encode", oldData, newData);
+		assertEquals(777, oldData.position());
+		assertArrayEquals(modified, (byte[])Internals.callStatic("DeltaEncoder", "decode", oldData, delta, modified.length));
+	}
+	
+	@Test
+	public void rejectsDamagedDeltas() throws Exception {
+		byte[] original = content(1, 30000);
+		byte[] modified = concat(Arrays.copyOf(original, 10000), content(2, 1000), Arrays.copyOfRange(original, 10000, original.length));
+		byte[] delta = (byte[])Internals.callStatic("DeltaEncoder", "encode", ByteBuffer.wrap(original), ByteBuffer.wrap(modified));
+		
+		assertCorrupt(original, Arrays.copyOf(delta, delta.length - 1), modified.length);
+		assertCorrupt(original, delta, modified.length - 1);
+		assertCorrupt(original, delta, modified.length + 1);
+		assertCorrupt(Arrays.copyOf(original, 1000), delta, modified.length);
+	}
+	
+	@Test
+	public void deltaPackageReproducesTheModifiedBundle() throws Exception {
+		String original = path("original.bundle");
+		String mods = path("mods");
+		Internals.run("generate", original, mods, "--entries=200", "--sizes=1-64", "--modded=20", "--seed=14");
+		
+		for (String[] options : new String[][] {{"--compress=zlib"}, {"--compress=lz4", "--dedup"}, {"--dedup", "--hash=md5"}}) {
+			String modified = path("modified.bundle");
+			String delta = path("package.delta");
+			String output = path("output.bundle");
+			String[] args = concat(new String[] {original, modified, mods, "--full"}, options);
+			Internals.run(args);
+			Internals.run("diff", original, modified, delta);
+			assertTrue(new File(delta).length() < new File(modified).length() / 4);
+			
+			Internals.run("apply", original, delta, output);
+			assertArrayEquals(Arrays.toString(options), Files.readAllBytes(new File(modified).toPath()), Files.readAllBytes(new File(output).toPath()));
+			
+			//in place, the entries end up wherever they fit, but the content is the same
+			String copy = path("copy.bundle");
+			Files.copy(new File(original).toPath(), new File(copy).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Internals.run("apply", copy, delta);
+			assertTrue(Internals.run("verify", copy).contains("All 1 bundles are intact."));
+			assertFalse(new File(copy + ".journal").exists());
+			Internals.run("extract", modified, path("expected"));
+			Internals.run("extract", copy, path("actual"));
+			List<Path> expected = Internals.listFiles(new File(path("expected")).toPath());
+			assertEquals(200, expected.size());
+			for (Path file : expected) {
+				Path actual = new File(path("actual")).toPath().resolve(new File(path("expected")).toPath().relativize(file));
+				assertArrayEquals(file.toString(), Files.readAllBytes(file), Files.readAllBytes(actual));
+			}
+		}
+	}
+	
+	@Test
+	public void deltaPackageRefusesOtherBundles() throws Exception {
+		Internals.run("generate", path("original.bundle"), path("mods"), "--entries=50", "--sizes=1-16", "--seed=1");
+		Internals.run("generate", path("other.bundle"), "--entries=50", "--sizes=1-16", "--seed=2");
+		Internals.run(path("original.bundle"), path("modified.bundle"), path("mods"));
+		Internals.run("diff", path("original.bundle"), path("modified.bundle"), path("package.delta"));
+		
+		byte[] before = Files.readAllBytes(new File(path("other.bundle")).toPath());
+		try {
+			Internals.run("apply", path("other.bundle"), path("package.delta"));
+			fail("A delta package was applied to a bundle it wasn't made from");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("was not made from"));
+		}
+		assertArrayEquals(before, Files.readAllBytes(new File(path("other.bundle")).toPath()));
+	}
+	
+	private String path(String name) {
+		return new File(temp.getRoot(), name).getPath();
+	}
+	
+	private static byte[] content(int seed, int size) throws Exception {
+		return (byte[])Internals.callStatic("SyntheticBundle", "getContent", new Random(seed), size);
+	}
+	
+	private static byte[] assertRoundTrip(byte[] original, byte[] modified) throws Exception {
+		byte[] delta = (byte[])Internals.callStatic("DeltaEncoder", "encode", ByteBuffer.wrap(original), ByteBuffer.wrap(modified));
+		assertArrayEquals(modified, (byte[])Internals.callStatic("DeltaEncoder", "decode", ByteBuffer.wrap(original), delta, modified.length));
+		return delta;
+	}
+	
+	private static void assertCorrupt(byte[] original, byte[] delta, int newLength) throws Exception {
+		try {
+			Internals.callStatic("DeltaEncoder", "decode", ByteBuffer.wrap(original), delta, newLength);
+			fail("A damaged delta was decoded");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt delta"));
+		}
+	}
+	
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		byte[] result = new byte[length];
+		int position = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, position, part.length);
+			position += part.length;
+		}
+		return result;
+	}
+	
+	private static String[] concat(String[] first, String[] second) {
+		String[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+}
@@ -0,0 +1,146 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Interrupts in-place updates of generated bundles after the journal was written, with the bundle part way through
+ * being rewritten, and checks that recovery puts back exactly the original bundle.
+ */
+public class InPlacePatcherTest {
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+	
+	private File bundle;
+	private File journal;
+	private File mods;
+	private byte[] original;
+	
+	@Before
+	public void generate() throws Exception {
+		bundle = temp.newFile("test.bundle");
+		journal = new File(bundle.getPath() + ".journal");
+		mods = new File(temp.getRoot(), "mods");
+		Internals.run("generate", bundle.getPath(), mods.getPath(), "--entries=150", "--sizes=1-32", "--modded=15", "--seed=13");
+		original = Files.readAllBytes(bundle.toPath());
+	}
+	
+	@Test
+	public void recoveryRestoresAnInterruptedUpdate() throws Exception {
+		for (int seed = 0; seed < 5; seed++) {
+			writeJournal(regions(seed));
+			damage(seed, regions(seed), 1 + seed * 5000);
+			
+			assertTrue((Boolean)Internals.callStatic("InPlacePatcher", "recover", bundle.getPath(), Internals.metrics()));
+			assertArrayEquals("seed=" + seed, original, Files.readAllBytes(bundle.toPath()));
+			assertFalse(journal.exists());
+		}
+	}
+	
+	@Test
+	public void incompleteJournalsAreDiscarded() throws Exception {
+		writeJournal(regions(1));
+		byte[] complete = Files.readAllBytes(journal.toPath());
+		
+		//a journal that was cut short, or fails its checksum, was never finished, so the bundle was never touched
+		for (int length : new int[] {0, 7, 20, complete.length / 2, complete.length - 1}) {
+			Files.write(journal.toPath(), Arrays.copyOf(complete, length));
+			assertFalse((Boolean)Internals.callStatic("InPlacePatcher", "recover", bundle.getPath(), Internals.metrics()));
+			assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+			assertFalse(journal.exists());
+		}
+		byte[] corrupt = complete.clone();
+		corrupt[corrupt.length / 2] ^= 1;
+		Files.write(journal.toPath(), corrupt);
+		assertFalse((Boolean)Internals.callStatic("InPlacePatcher", "recover", bundle.getPath(), Internals.metrics()));
+		assertArrayEquals(original, Files.readAllBytes(bundle.toPath()));
+		
+		assertFalse((Boolean)Internals.callStatic("InPlacePatcher", "recover", bundle.getPath(), Internals.metrics()));
+	}
+	
+	@Test
+	public void inPlacePatchRecoversFirst() throws Exception {
+		writeJournal(regions(2));
+		damage(2, regions(2), 10000);
+		
+		String output = Internals.run("--in-place", bundle.getPath(), mods.getPath());
+		assertTrue(output.contains("WARN:  Found an incomplete in-place update"));
+		assertFalse(journal.exists());
+		assertModsApplied();
+	}
+	
+	@Test
+	public void inPlacePatchAppliesEveryMod() throws Exception {
+		Internals.run("--in-place", bundle.getPath(), mods.getPath(), "--compress=zlib");
+		assertFalse(journal.exists());
+		assertModsApplied();
+		
+		//patching again with the same mods changes nothing that matters
+		Internals.run("--in-place", bundle.getPath(), mods.getPath(), "--compress=zlib");
+		assertFalse(journal.exists());
+		assertModsApplied();
+	}
+	
+	private void assertModsApplied() throws Exception {
+		assertTrue(Internals.run("verify", bundle.getPath()).contains("All 1 bundles are intact."));
+		Path extracted = new File(temp.getRoot(), "extracted").toPath();
+		Internals.run("extract", bundle.getPath(), extracted.toString());
+		List<Path> modFiles = Internals.listFiles(mods.toPath());
+		assertEquals(15, modFiles.size());
+		for (Path modFile : modFiles) {
+			assertArrayEquals(modFile.toString(), Files.readAllBytes(modFile), Files.readAllBytes(extracted.resolve(mods.toPath().relativize(modFile))));
+		}
+	}
+	
+	/**
+	 * Picks the regions an update would journal:  the header, a few descriptors, and some entries' data.
+	 */
+	private List<long[]> regions(int seed) {
+		Random random = new Random(seed);
+		List<long[]> regions = new ArrayList<>();
+		regions.add(new long[] {0, 32});
+		for (int index = 0; index < 4; index++) {
+			regions.add(new long[] {32 + 320L * random.nextInt(150), 320});
+			long position = 32 + 320L * 150 + random.nextInt(original.length - 32 - 320 * 150 - 10000);
+			regions.add(new long[] {position, 1 + random.nextInt(10000)});
+		}
+		return regions;
+	}
+	
+	private void writeJournal(List<long[]> regions) throws Exception {
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "r")) {
+			Internals.callStatic("InPlacePatcher", "writeJournal", journal, file.getChannel(), (long)original.length, regions);
+		}
+	}
+	
+	/**
+	 * Overwrites the journaled regions with garbage, and grows the bundle, as an interrupted update would.
+	 */
+	private void damage(int seed, List<long[]> regions, int growth) throws Exception {
+		Random random = new Random(~seed);
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+			for (long[] region : regions) {
+				byte[] garbage = new byte[(int)region[1]];
+				random.nextBytes(garbage);
+				file.seek(region[0]);
+				file.write(garbage);
+			}
+			file.setLength(file.length() + growth);
+		}
+		assertFalse(Arrays.equals(original, Files.readAllBytes(bundle.toPath())));
+	}
+}
@@ -0,0 +1,170 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reflective access to BundleExplorer for the tests, and a few helpers they share.  The tool is a single source file
+ * whose classes are all private and nested, so the tests reach them by name (e.g. 'type("DeltaEncoder")') rather than
+ * changing their visibility.
+ */
+final class Internals {
+	private Internals() {
+	}
+	
+	/**
+	 * Returns the nested class with the given simple name, e.g. "Codecs" or "Metrics.Phase".
+	 */
+	public static Class<?> type(String name) throws ClassNotFoundException {
+		return Class.forName("BundleExplorer$" + name.replace('.', '$'));
+	}
+	
+	/**
+	 * Creates an instance of the named nested class.
+	 */
+	public static Object create(String name, Object... args) throws Exception {
+		for (Constructor<?> constructor : type(name).getDeclaredConstructors()) {
+			if (accepts(constructor.getParameterTypes(), args)) {
+				return invoke(constructor, null, args);
+			}
+		}
+		throw new NoSuchMethodException(name + Arrays.toString(args));
+	}
+	
+	/**
+	 * Calls a static method of the named nested class.
+	 */
+	public static Object callStatic(String name, String method, Object... args) throws Exception {
+		return invoke(find(type(name), method, args), null, args);
+	}
+	
+	/**
+	 * Calls a method of an instance of one of the nested classes.
+	 */
+	public static Object call(Object target, String method, Object... args) throws Exception {
+		return invoke(find(target.getClass(), method, args), target, args);
+	}
+	
+	/**
+	 * Returns a new, empty Metrics, which most of the classes need.
+	 */
+	public static Object metrics() throws Exception {
+		return create("Metrics");
+	}
+	
+	/**
+	 * Runs a command the way 'main()' does (without the pause at the end), and returns everything it printed.
+	 */
+	public static String run(String... args) throws Exception {
+		List<String> params = new ArrayList<>();
+		List<String> flags = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("-")) {
+				flags.add(arg);
+			}
+			else {
+				params.add(arg);
+			}
+		}
+		
+		Method run = BundleExplorer.class.getDeclaredMethod("run", List.class, List.class, type("Metrics"));
+		run.setAccessible(true);
+		PrintStream originalOut = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true, "UTF-8"));
+		try {
+			invoke(run, null, params, flags, metrics());
+		}
+		finally {
+			System.setOut(originalOut);
+		}
+		String printed = output.toString("UTF-8");
+		originalOut.print(printed);
+		return printed;
+	}
+	
+	/**
+	 * Lists every file under the given directory.
+	 */
+	public static List<Path> listFiles(Path root) throws IOException {
+		final List<Path> files = new ArrayList<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+	
+	private static Method find(Class<?> type, String name, Object[] args) throws NoSuchMethodException {
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			for (Method method : current.getDeclaredMethods()) {
+				if (method.getName().equals(name) && accepts(method.getParameterTypes(), args)) {
+					return method;
+				}
+			}
+		}
+		throw new NoSuchMethodException(type.getName() + "." + name + Arrays.toString(args));
+	}
+	
+	private static boolean accepts(Class<?>[] parameterTypes, Object[] args) {
+		if (parameterTypes.length != args.length) {
+			return false;
+		}
+		for (int index = 0; index < args.length; index++) {
+			Class<?> parameterType = wrap(parameterTypes[index]);
+			if (args[index] == null ? parameterTypes[index].isPrimitive() : ! parameterType.isInstance(args[index])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static Class<?> wrap(Class<?> type) {
+		if (! type.isPrimitive()) {
+			return type;
+		}
+		if (type == int.class) {
+			return Integer.class;
+		}
+		if (type == long.class) {
+			return Long.class;
+		}
+		if (type == boolean.class) {
+			return Boolean.class;
+		}
+		if (type == byte.class) {
+			return Byte.class;
+		}
+		return type == char.class ? Character.class : type == short.class ? Short.class : type == float.class ? Float.class : Double.class;
+	}
+	
+	/**
+	 * Invokes a method or constructor, rethrowing whatever it throws as it is (rather than wrapped).
+	 */
+	private static Object invoke(AccessibleObject member, Object target, Object... args) throws Exception {
+		member.setAccessible(true);
+		try {
+			return member instanceof Method ? ((Method)member).invoke(target, args) : ((Constructor<?>)member).newInstance(args);
+		}
+		catch (InvocationTargetException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw (Error)e.getCause();
+		}
+	}
+}
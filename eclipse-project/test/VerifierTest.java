@@ -0,0 +1,145 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that generated bundles verify cleanly, and that each kind of damage to one is reported against the right
+ * entry.
+ */
+public class VerifierTest {
+	private static final int DESCRIPTOR_SIZE = 320;
+	private static final int COMPRESSED_SIZE_FIELD = 280;
+	private static final int OFFSET_FIELD = 284;
+	private static final int ALGO_FIELD = 316;
+	
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+	
+	private Object verifier;
+	private File bundle;
+	
+	@Before
+	public void generate() throws Exception {
+		verifier = Internals.create("Verifier", null, Internals.metrics());
+		bundle = new File(temp.getRoot(), "test.bundle");
+		Internals.run("generate", bundle.getPath(), "--entries=100", "--sizes=1-64", "--compression=none:1,zlib:1,lz4:1,lz4hc:1", "--seed=16");
+	}
+	
+	@After
+	public void shutdown() throws Exception {
+		Internals.call(verifier, "shutdown");
+	}
+	
+	@Test
+	public void generatedBundlesAreIntact() throws Exception {
+		assertEquals(Arrays.asList(), verify());
+		assertTrue(Internals.run("verify", temp.getRoot().getPath()).contains("All 1 bundles are intact."));
+	}
+	
+	@Test
+	public void reportsATruncatedBundle() throws Exception {
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+			file.setLength(file.length() - 1);
+		}
+		List<String> problems = verify();
+		assertTrue(problems.toString(), problems.get(0).startsWith("header:  total size is "));
+		assertTrue(problems.toString(), problems.get(1).startsWith("synthetic\\group3\\file99.") && problems.get(1).contains("lies outside of the data area"));
+		assertTrue(Internals.run("verify", bundle.getPath()).contains("ERROR:  1 / 1 bundles are damaged."));
+	}
+	
+	@Test
+	public void reportsDataThatDoesNotDecode() throws Exception {
+		int index = find(1);
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+			file.seek(readField(file, index, OFFSET_FIELD));
+			file.write(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF});
+		}
+		List<String> problems = verify();
+		assertEquals(problems.toString(), 1, problems.size());
+		assertTrue(problems.toString(), problems.get(0).contains("file" + index + "."));
+	}
+	
+	@Test
+	public void reportsBrokenDescriptors() throws Exception {
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "rw")) {
+			writeField(file, 10, OFFSET_FIELD, readField(file, 10, OFFSET_FIELD) + 16);
+			writeField(file, 20, OFFSET_FIELD, readField(file, 19, OFFSET_FIELD));
+			writeField(file, 30, ALGO_FIELD, 99);
+			writeField(file, find(0), COMPRESSED_SIZE_FIELD, 12);
+		}
+		List<String> problems = verify();
+		assertTrue(problems.toString(), contains(problems, "file10.", "isn't aligned to 4096 bytes"));
+		assertTrue(problems.toString(), contains(problems, "file20.", "overlaps the data of synthetic\\group3\\file19."));
+		assertTrue(problems.toString(), contains(problems, "file30.", "unknown compression algorithm 99"));
+		assertTrue(problems.toString(), contains(problems, "file" + find(0) + ".", "stored uncompressed, but its stored size (12)"));
+	}
+	
+	@Test
+	public void checksHashesWithTheGivenScheme() throws Exception {
+		//generated entries have random hashes, so only the entries patched with '--hash' have the right ones
+		File mods = new File(temp.getRoot(), "mods");
+		File output = new File(temp.getRoot(), "output.bundle");
+		Internals.run("generate", bundle.getPath(), mods.getPath(), "--entries=100", "--sizes=1-16", "--modded=10", "--seed=16");
+		Internals.run(bundle.getPath(), output.getPath(), mods.getPath(), "--hash=md5", "--compress=lz4");
+		Internals.call(verifier, "shutdown");
+		verifier = Internals.create("Verifier", Internals.callStatic("Hashes", "get", "md5"), Internals.metrics());
+		
+		List<String> problems = verify(output);
+		assertEquals(problems.toString(), 90, problems.size());
+		for (int index = 0; index < 100; index += 10) {
+			assertTrue(problems.toString(), ! contains(problems, "file" + index + ".", ""));
+		}
+		assertTrue(problems.get(0), problems.get(0).contains("doesn't match the md5 hash of its content"));
+	}
+	
+	private List<String> verify() throws Exception {
+		return verify(bundle);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<String> verify(File bundle) throws Exception {
+		return (List<String>)Internals.call(verifier, "verify", bundle.getPath());
+	}
+	
+	/**
+	 * Returns the index of the first entry stored with the given compression algorithm.
+	 */
+	private int find(int algo) throws Exception {
+		try (RandomAccessFile file = new RandomAccessFile(bundle, "r")) {
+			for (int index = 0; ; index++) {
+				if (readField(file, index, ALGO_FIELD) == algo) {
+					return index;
+				}
+			}
+		}
+	}
+	
+	private static long readField(RandomAccessFile file, int index, int field) throws Exception {
+		file.seek(32 + (long)index * DESCRIPTOR_SIZE + field);
+		return Integer.reverseBytes(file.readInt()) & 0xFFFFFFFFL;
+	}
+	
+	private static void writeField(RandomAccessFile file, int index, int field, long value) throws Exception {
+		file.seek(32 + (long)index * DESCRIPTOR_SIZE + field);
+		file.writeInt(Integer.reverseBytes((int)value));
+	}
+	
+	private static boolean contains(List<String> problems, String entry, String problem) {
+		for (String description : problems) {
+			if (description.contains(entry) && description.contains(problem)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}